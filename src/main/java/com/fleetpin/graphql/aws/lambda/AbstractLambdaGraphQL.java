@@ -0,0 +1,971 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fleetpin.graphql.aws.lambda.admin.User;
+import com.fleetpin.graphql.aws.lambda.exceptions.AccessDeniedError;
+import com.fleetpin.graphql.aws.lambda.exceptions.PersistedQueryHashMismatch;
+import com.fleetpin.graphql.aws.lambda.exceptions.PersistedQueryNotFound;
+import com.fleetpin.graphql.aws.lambda.exceptions.QueryCostExceeded;
+import com.fleetpin.graphql.aws.lambda.instrumentation.DeadlineInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.DeferredContextInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.FieldTracingInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.MetricsInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.PendingContext;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostAnalyser;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.ResponseCacheInstrumentation;
+import com.fleetpin.graphql.aws.lambda.metrics.EmfMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.LambdaMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.Phase;
+import com.fleetpin.graphql.aws.lambda.metrics.RequestMetrics;
+import com.fleetpin.graphql.aws.lambda.persisted.InMemoryPersistedQueryRegistry;
+import com.fleetpin.graphql.aws.lambda.persisted.PersistedQueryRegistry;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+
+import graphql.ErrorType;
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQL;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.cachecontrol.CacheControl;
+import graphql.execution.instrumentation.ChainedInstrumentation;
+import graphql.execution.instrumentation.Instrumentation;
+import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentation;
+import graphql.execution.instrumentation.dataloader.DataLoaderDispatcherInstrumentationOptions;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+import static com.google.common.net.HttpHeaders.*;
+
+/**
+ * Runs graphql requests arriving through API gateway. {@link LambdaGraphQL} and {@link LambdaGraphQLStream} only
+ * differ in how the request reaches this class and how the {@link GraphQLResponse} is handed back.
+ */
+public abstract class AbstractLambdaGraphQL<U, C extends ContextGraphQL> implements Resource {
+    private static final Logger logger = LoggerFactory.getLogger(AbstractLambdaGraphQL.class);
+    private static final TypeReference<List<GraphQLQuery>> BATCH = new TypeReference<>() {};
+    private static final TypeReference<Map<String, Object>> JSON_OBJECT = new TypeReference<>() {};
+    private final ObjectMapper mapper;
+    private final ExecutionResultWriter resultWriter;
+    private final ResponseCompressor compressor;
+    private final GraphQL build;
+    private final DocumentCache documentCache;
+    private volatile PersistedQueryRegistry persistedQueries;
+    private final ValidationCache<U> validationCache;
+    private final boolean instrumented;
+    private final LambdaMetrics metrics;
+    private final ResponseCache responseCache;
+    private final FieldTracingInstrumentation tracing;
+
+    protected AbstractLambdaGraphQL() throws Exception {
+        this.metrics = buildMetrics();
+        this.responseCache = buildResponseCache();
+        this.tracing = buildFieldTracing();
+        final var size = documentCacheSize();
+        this.documentCache = size > 0 ? new DocumentCache(size) : null;
+        this.build = configure(buildGraphQL());
+        this.instrumented = build != null;
+        this.mapper = builderObjectMapper();
+        this.resultWriter = new ExecutionResultWriter(mapper);
+        this.compressor = new ResponseCompressor(compressionLevel(), compressionMinimumSize());
+        this.persistedQueries = buildPersistedQueryRegistry();
+        this.validationCache = buildValidationCache();
+        prime();
+        Core.getGlobalContext().register(this);
+    }
+
+    protected AbstractLambdaGraphQL(final GraphQL graphQL) {
+        build = graphQL;
+        mapper = builderObjectMapper();
+        resultWriter = new ExecutionResultWriter(mapper);
+        compressor = new ResponseCompressor(compressionLevel(), compressionMinimumSize());
+        documentCache = null;
+        instrumented = false;
+        metrics = buildMetrics();
+        responseCache = null;
+        tracing = null;
+        persistedQueries = buildPersistedQueryRegistry();
+        validationCache = buildValidationCache();
+    }
+
+    private GraphQL configure(final GraphQL graphQL) {
+        if (graphQL == null) {
+            return null;
+        }
+        final List<Instrumentation> chain = new ArrayList<>();
+        final var analyser = buildQueryCostAnalyser();
+        if (analyser != null) {
+            // before the context so rejected operations never wait on the user
+            chain.add(new QueryCostInstrumentation(analyser, this::reportQueryCost));
+        }
+        if (responseCache != null) {
+            chain.add(new ResponseCacheInstrumentation(responseCache));
+        }
+        chain.add(new DeferredContextInstrumentation());
+        // dispatches the loaders of contexts exposing a registry, does nothing for those that don't
+        chain.add(new DataLoaderDispatcherInstrumentation(DataLoaderDispatcherInstrumentationOptions.newOptions().includeStatistics(false)));
+        chain.add(new DeadlineInstrumentation());
+        if (metrics != null) {
+            chain.add(new MetricsInstrumentation());
+        }
+        if (tracing != null) {
+            chain.add(tracing);
+        }
+        chain.addAll(instrumentations());
+        return graphQL.transform(builder -> {
+            if (documentCache != null) {
+                builder.preparsedDocumentProvider(documentCache);
+            }
+            builder.instrumentation(new ChainedInstrumentation(chain));
+        });
+    }
+
+    /**
+     * operations over the analyser's limits are rejected with a {@link QueryCostExceeded} error before any resolver runs
+     * @return null to run every operation that passes validation
+     */
+    protected QueryCostAnalyser buildQueryCostAnalyser() {
+        return null;
+    }
+
+    /**
+     * per phase timings, response sizes, error counts and query cost of every request, dimensioned by operation name
+     * @return null to turn metrics off, or {@link EmfMetrics} to publish through the function log
+     */
+    protected LambdaMetrics buildMetrics() {
+        return null;
+    }
+
+    /**
+     * traces the timing of each field of sampled requests, for example
+     * {@code new FieldTracingInstrumentation(0.01).header("X-Trace")} traces one request in a hundred and any asking for it
+     * @return null to trace nothing
+     */
+    protected FieldTracingInstrumentation buildFieldTracing() {
+        return null;
+    }
+
+    /**
+     * caches whole responses of queries whose fields carry {@code @cacheControl} hints, see {@link ResponseCache}
+     * @return null to execute every request
+     */
+    protected ResponseCache buildResponseCache() {
+        return null;
+    }
+
+    /**
+     * @param user the validated user
+     * @return id private responses are cached under, null to not cache private responses for this user
+     */
+    protected String cacheUserId(final U user) {
+        if (user instanceof User) {
+            return ((User) user).getId();
+        }
+        return null;
+    }
+
+    /**
+     * Cache-Control header of responses to GET requests, every GET response also carries a strong ETag
+     * @param query the query that was run
+     * @param policy the response cache policy of the document, null without a response cache, before the policy is known or if the response has errors
+     * @return the header value
+     */
+    protected String cacheControl(final GraphQLQuery query, final ResponseCache.CachePolicy policy) {
+        if (policy == null) {
+            return "no-cache";
+        }
+        if (!policy.isCacheable()) {
+            return "no-store";
+        }
+        final var scope = policy.getScope() == CacheControl.Scope.PRIVATE ? "private" : "public";
+        return scope + ", max-age=" + policy.getMaxAge();
+    }
+
+    /**
+     * called with the cost of every analysed operation, including rejected ones
+     * @param operationName null for anonymous operations
+     * @param cost the computed cost
+     */
+    protected void reportQueryCost(final String operationName, final QueryCost cost) {
+        logger.debug("Operation {} has {}", operationName, cost);
+    }
+
+    /**
+     * the lambda installs its own instrumentation on the GraphQL from {@link #buildGraphQL()}, replacing any set there.
+     * Return extra instrumentation to run from here instead
+     * @return
+     */
+    protected List<Instrumentation> instrumentations() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * number of parsed and validated documents to keep between invocations.
+     * Return 0 to disable the cache and keep any PreparsedDocumentProvider set in {@link #buildGraphQL()}
+     * @return
+     */
+    protected int documentCacheSize() {
+        return 500;
+    }
+
+    /**
+     * where apollo automatic persisted queries are kept, override with a
+     * {@link com.fleetpin.graphql.aws.lambda.persisted.DynamoPersistedQueryRegistry} to share them between containers.
+     * Return null to disable persisted queries
+     * @return
+     */
+    protected PersistedQueryRegistry buildPersistedQueryRegistry() {
+        return new InMemoryPersistedQueryRegistry(1000);
+    }
+
+    /**
+     * number of validated tokens to remember so {@link #validate(String)} is skipped for repeat requests.
+     * Disabled by default as a cached user is still let in after being revoked, until the token expires or
+     * {@link #validationCacheMaxTTL()} passes
+     * @return
+     */
+    protected int validationCacheSize() {
+        return 0;
+    }
+
+    /**
+     * longest a validated token is trusted for, tokens with an earlier exp claim are dropped then
+     * @return
+     */
+    protected Duration validationCacheMaxTTL() {
+        return Duration.ofMinutes(5);
+    }
+
+    private ValidationCache<U> buildValidationCache() {
+        final var size = validationCacheSize();
+        return size > 0 ? new ValidationCache<>(size, validationCacheMaxTTL()) : null;
+    }
+
+    /**
+     * @return the document cache in use or null if disabled
+     */
+    protected DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+    protected ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * compress responses with gzip or deflate when the client accepts it
+     * @return
+     */
+    public boolean enableGzipCompression() { return false; }
+
+    /**
+     * responses smaller than this are sent uncompressed, base64 adds a third to the size so small bodies only grow
+     * @return
+     */
+    protected int compressionMinimumSize() {
+        return 1024;
+    }
+
+    /**
+     * @return deflate level from 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    protected int compressionLevel() {
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+
+    /**
+     * time kept back from the lambda's remaining time to write the response once the deadline passes
+     * @return margin subtracted from {@link com.amazonaws.services.lambda.runtime.Context#getRemainingTimeInMillis()}
+     */
+    protected Duration deadlineMargin() {
+        return Duration.ofMillis(500);
+    }
+
+    /**
+     * @param lambdaContext the invocation context, null outside of lambda
+     * @return when field fetches are stopped, {@link Deadline#NONE} without a lambda context
+     */
+    protected Deadline deadline(final com.amazonaws.services.lambda.runtime.Context lambdaContext) {
+        if (lambdaContext == null) {
+            return Deadline.NONE;
+        }
+        return Deadline.after(Duration.ofMillis(lambdaContext.getRemainingTimeInMillis()).minus(deadlineMargin()));
+    }
+
+    /**
+     * maximum number of queries accepted in one batched request, 0 to reject batches
+     * @return
+     */
+    protected int maxBatchSize() {
+        return 10;
+    }
+
+    /**
+     * if a batched request builds one context shared by all its queries, built with the first query,
+     * rather than one context per query
+     * @return
+     */
+    protected boolean shareBatchContext() {
+        return false;
+    }
+
+    public boolean enableAccessLog() {
+    	return false;
+    }
+    /**
+     * if on a 500 want the API to show the content
+     * @return
+     */
+    public boolean showFailureCause() {
+    	return false;
+    }
+
+    /**
+     * queries run when the lambda starts, and again on every keep warm ping, so the first real requests do not pay
+     * for class loading, JIT and first time schema work. Called from the constructor before subclass fields are set
+     * @return empty to skip priming
+     */
+    protected List<GraphQLQuery> warmupQueries() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param query the warm up query about to run
+     * @return context to run it with, null to give resolvers a context that does nothing
+     */
+    protected C buildWarmupContext(final GraphQLQuery query) {
+        return null;
+    }
+
+    /**
+     * runs the {@link #warmupQueries()} and writes their results through the serializer and compressor.
+     * Override to prime anything else, such as fetching signing keys, calling super to keep the queries
+     */
+    protected void prime() {
+        final var queries = warmupQueries();
+        if (queries.isEmpty()) {
+            return;
+        }
+        try {
+            final var results = Warmup.run(build, queries, query -> {
+                final var context = buildWarmupContext(query);
+                return context == null ? Warmup.NOOP_CONTEXT : context;
+            });
+            for (final var result : results) {
+                resultWriter.write(result, OutputStream.nullOutputStream());
+                if (enableGzipCompression()) {
+                    resultWriter.write(result, compressor.compress(ResponseCompressor.Encoding.GZIP, OutputStream.nullOutputStream()));
+                }
+            }
+        } catch (final Exception e) {
+            logger.warn("Failed to prime", e);
+        } finally {
+            LambdaCache.evict();
+        }
+    }
+
+    /**
+     * primes before a SnapStart snapshot is taken so restored lambdas start warm
+     */
+    @Override
+    public void beforeCheckpoint(final Context<? extends Resource> context) throws Exception {
+        prime();
+    }
+
+    /**
+     * a restored snapshot can be running long after and many times over, so cached entries are dropped and the
+     * persisted query registry, which may hold network clients, is rebuilt. Override to rebuild other clients
+     */
+    @Override
+    public void afterRestore(final Context<? extends Resource> context) throws Exception {
+        LambdaCache.reset();
+        if (validationCache != null) {
+            validationCache.clear();
+        }
+        if (responseCache != null) {
+            responseCache.clear();
+        }
+        persistedQueries = buildPersistedQueryRegistry();
+    }
+
+    /**
+     * answers a keep warm ping, refreshing the primes
+     * @return empty response
+     */
+    protected GraphQLResponse keepWarm() {
+        prime();
+        return new GraphQLResponse(200, Constants.GRAPHQL_RESPONSE_HEADERS, "{}");
+    }
+
+    /**
+     * @param body the request body
+     * @param headers the request headers
+     * @return the response to send back through API gateway
+     */
+    protected GraphQLResponse handle(final String body, final Map<String, String> headers) {
+        return handle("POST", body, Collections.emptyMap(), headers);
+    }
+
+    /**
+     * @param method the http method, GET reads the query from the query string and only runs query operations
+     * @param body the request body
+     * @param parameters the query string parameters
+     * @param headers the request headers
+     * @return the response to send back through API gateway
+     */
+    protected GraphQLResponse handle(final String method, final String body, final Map<String, String> parameters, final Map<String, String> headers) {
+        return handle(method, body, parameters, headers, Deadline.NONE);
+    }
+
+    /**
+     * @param method the http method, GET reads the query from the query string and only runs query operations
+     * @param body the request body
+     * @param parameters the query string parameters
+     * @param headers the request headers
+     * @param deadline fields still fetching at the deadline resolve to errors so the response goes out in time
+     * @return the response to send back through API gateway
+     */
+    protected GraphQLResponse handle(final String method, final String body, final Map<String, String> parameters, final Map<String, String> headers, final Deadline deadline) {
+        final var requestMetrics = metrics == null ? RequestMetrics.NOOP : metrics.start();
+        try {
+            return handle(method, body, parameters == null ? Collections.emptyMap() : parameters, headers == null ? Collections.emptyMap() : headers, deadline, requestMetrics);
+        } finally {
+            if (requestMetrics != RequestMetrics.NOOP) {
+                requestMetrics.caches(LambdaCache.stats());
+            }
+            requestMetrics.close();
+        }
+    }
+
+    private GraphQLResponse handle(final String method, final String body, final Map<String, String> parameters, final Map<String, String> headers, final Deadline deadline, final RequestMetrics requestMetrics) {
+        final var get = "GET".equalsIgnoreCase(method);
+        try {
+            if (get) {
+                final var query = queryFromParameters(parameters);
+                if ((query.getQuery() == null || query.getQuery().isEmpty()) && query.getPersistedQueryHash() == null) {
+                    requestMetrics.errors(1);
+                    return noStore(errorResponse(400, GraphqlErrorBuilder.newError().message("GET requests need a query parameter").build()));
+                }
+                final var resolved = resolvePersistedQuery(query).get();
+                return executeQuery(resolved, isRegistration(query), headers, deadline, requestMetrics, true);
+            }
+            if (isBatch(body)) {
+                final List<GraphQLQuery> queries = mapper.readValue(body, BATCH);
+                if (queries.size() > maxBatchSize()) {
+                    final var error = GraphqlErrorBuilder.newError().message("Batch of " + queries.size() + " exceeds limit of " + maxBatchSize()).build();
+                    requestMetrics.errors(1);
+                    return errorResponse(400, error);
+                }
+                requestMetrics.operation("batch");
+                final var results = executeBatch(queries, headers, deadline, requestMetrics);
+                results.forEach(result -> requestMetrics.errors(result.getErrors().size()));
+                return respond(headers, out -> resultWriter.write(results, out), requestMetrics);
+            }
+            final var request = mapper.readValue(body, GraphQLQuery.class);
+            final var query = resolvePersistedQuery(request).get();
+            return executeQuery(query, isRegistration(request), headers, deadline, requestMetrics, false);
+        } catch (final Exception e) {
+            final var error = e.getCause();
+            final GraphQLResponse response;
+            if (error instanceof AccessDeniedError) {
+                logger.error("Failed to validate user", e);
+                requestMetrics.errors(1);
+                response = errorResponse((AccessDeniedError) error);
+            } else if (error instanceof PersistedQueryNotFound || error instanceof PersistedQueryHashMismatch) {
+                requestMetrics.errors(1);
+                response = errorResponse((GraphQLError) error);
+            } else {
+                logger.error("Failed to invoke graph", e);
+                requestMetrics.failure();
+                //don't want to expose internal api 
+                if(showFailureCause()) {
+                	response = new GraphQLResponse(500, Constants.GRAPHQL_RESPONSE_HEADERS, Throwables.getStackTraceAsString(e));
+                }else {
+                	response = new GraphQLResponse(500, Constants.GRAPHQL_RESPONSE_HEADERS, "{ \"error\": \"Internal Server Error\" }");
+                }
+            }
+            // a shared cache holding on to a not found would stop the persisted query being sent again
+            return get ? noStore(response) : response;
+        } finally {
+            LambdaCache.evict();
+        }
+    }
+
+    private GraphQLResponse executeQuery(final GraphQLQuery query, final boolean register, final Map<String, String> headers, final Deadline deadline, final RequestMetrics requestMetrics, final boolean get) throws IOException, InterruptedException, ExecutionException {
+        requestMetrics.operation(query.getOperationName());
+        // the document is parsed and validated while the user is still being validated
+        final var user = validateUser(headers.get(AUTHORIZATION), requestMetrics);
+        final var encoding = acceptedEncoding(headers);
+
+        String documentKey = null;
+        String responseKey = null;
+        if (responseCache != null) {
+            documentKey = responseCache.documentKey(query.getQuery(), query.getOperationName());
+            responseKey = responseKey(query, documentKey, user);
+            if (responseKey != null) {
+                // cached responses are still only for valid users
+                final var validated = user.get();
+                final var cached = responseCache.get(responseKey, encoding);
+                if (cached != null) {
+                    if(enableAccessLog()) {
+                        logger.info("Cached query {}, for user {}", query.getOperationName(), validated);
+                    }
+                    // only error free responses are cached so the document is valid
+                    if (register) {
+                        registerPersistedQuery(query);
+                    }
+                    return get ? httpCaching(cached, query, responseCache.policy(documentKey), headers) : cached;
+                }
+            }
+        }
+
+        final var traced = tracing != null && tracing.sample(headers);
+        final var pending = new PendingContext<U, C>(user, u -> buildContext(u, query), requestMetrics, get, deadline).traced(traced);
+        final var queryResponse = execute(query, contextFor(pending, user));
+        pending.getContext().thenAccept(graphContext -> graphContext.start(queryResponse, deadline));
+
+        final var result = await(queryResponse, deadline);
+        recordDataLoaders(pending);
+        final var validated = user.get();
+        if(enableAccessLog()) {
+        	logger.info("Executing query {}, for user {}", query.getOperationName(), validated);
+        }
+        requestMetrics.errors(result.getErrors().size());
+        if (pending.isRejected()) {
+            return noStore(errorResponse(405, result.getErrors().get(0)));
+        }
+        if (register && isValidDocument(result)) {
+            registerPersistedQuery(query);
+        }
+        final var response = respond(encoding, out -> resultWriter.write(result, out), requestMetrics);
+        // traces are particular to the request that ran
+        if (documentKey != null && result.getErrors().isEmpty() && !traced) {
+            // the policy is known once the document has been executed
+            if (responseKey == null) {
+                responseKey = responseKey(query, documentKey, user);
+            }
+            if (responseKey != null) {
+                responseCache.put(documentKey, responseKey, encoding, response);
+            }
+        }
+        if (get) {
+            final var policy = documentKey == null || !result.getErrors().isEmpty() ? null : responseCache.policy(documentKey);
+            return httpCaching(response, query, policy, headers);
+        }
+        return response;
+    }
+
+    private GraphQLQuery queryFromParameters(final Map<String, String> parameters) throws JsonProcessingException {
+        return new GraphQLQuery(
+                parameters.get("operationName"),
+                parameters.get("query"),
+                readParameter(parameters.get("variables")),
+                readParameter(parameters.get("extensions")));
+    }
+
+    private Map<String, Object> readParameter(final String json) throws JsonProcessingException {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        return mapper.readValue(json, JSON_OBJECT);
+    }
+
+    /**
+     * adds the ETag and Cache-Control headers to a GET response, answering 304 when the client already has the body
+     */
+    private GraphQLResponse httpCaching(final GraphQLResponse response, final GraphQLQuery query, final ResponseCache.CachePolicy policy, final Map<String, String> headers) {
+        final var etag = "\"" + Hashing.sha256().hashBytes(response.getBody(), 0, response.getBodyLength()) + "\"";
+        final var responseHeaders = new HashMap<>(response.getHeaders());
+        responseHeaders.put(ETAG, etag);
+        responseHeaders.put(CACHE_CONTROL, cacheControl(query, policy));
+        // the body is compressed for clients that accept it
+        responseHeaders.put(VARY, ACCEPT_ENCODING);
+        if (matches(header(headers, IF_NONE_MATCH), etag)) {
+            responseHeaders.remove(CONTENT_ENCODING);
+            return new GraphQLResponse(304, responseHeaders, "");
+        }
+        return new GraphQLResponse(response.getStatusCode(), responseHeaders, response.getBody(), response.getBodyLength(), response.isBase64Encoded());
+    }
+
+    private static GraphQLResponse noStore(final GraphQLResponse response) {
+        final var responseHeaders = new HashMap<>(response.getHeaders());
+        responseHeaders.put(CACHE_CONTROL, "no-store");
+        return new GraphQLResponse(response.getStatusCode(), responseHeaders, response.getBody(), response.getBodyLength(), response.isBase64Encoded());
+    }
+
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (var candidate : ifNoneMatch.trim().split("\\s*,\\s*")) {
+            // If-None-Match uses the weak comparison
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String header(final Map<String, String> headers, final String name) {
+        for (final var header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<U> validateUser(final String authHeader, final RequestMetrics requestMetrics) {
+        final long start = System.nanoTime();
+        final CompletableFuture<U> user;
+        if (validationCache == null) {
+            user = validate(authHeader);
+        } else {
+            user = validationCache.get(authHeader, this::validate);
+        }
+        if (requestMetrics != RequestMetrics.NOOP) {
+            user.whenComplete((validated, error) -> requestMetrics.timeSince(Phase.AUTH, start));
+        }
+        return user;
+    }
+
+    /**
+     * @return null if the document's responses are not cached, or its policy is not known yet
+     */
+    private String responseKey(final GraphQLQuery query, final String documentKey, final CompletableFuture<U> user) throws InterruptedException, ExecutionException {
+        final var policy = responseCache.policy(documentKey);
+        if (policy == null || !policy.isCacheable()) {
+            return null;
+        }
+        String userId = null;
+        if (policy.getScope() == CacheControl.Scope.PRIVATE) {
+            userId = cacheUserId(user.get());
+            if (userId == null) {
+                return null;
+            }
+        }
+        return responseCache.responseKey(documentKey, query.getVariables(), userId);
+    }
+
+    /**
+     * without the lambda's instrumentation in place nothing would swap the pending context, so build it up front
+     */
+    private Object contextFor(final PendingContext<U, C> pending, final CompletableFuture<U> user) throws InterruptedException, ExecutionException {
+        if (instrumented) {
+            return pending;
+        }
+        user.get();
+        return pending.resolve();
+    }
+
+    private CompletableFuture<ExecutionResult> execute(final GraphQLQuery query, final Object graphContext) {
+        return build.executeAsync(builder -> builder.query(query.getQuery())
+                .operationName(query.getOperationName())
+                .variables(query.getVariables())
+                .context(graphContext));
+    }
+
+    private List<ExecutionResult> executeBatch(final List<GraphQLQuery> queries, final Map<String, String> headers, final Deadline deadline, final RequestMetrics requestMetrics) throws InterruptedException, ExecutionException {
+        final var resolved = queries.stream().map(this::resolvePersistedQuery).collect(Collectors.toList());
+        final var user = validateUser(headers.get(AUTHORIZATION), requestMetrics);
+        final var traced = tracing != null && tracing.sample(headers);
+        try {
+            final var results = executeBatch(queries, resolved, user, deadline, traced, requestMetrics);
+            final var validated = user.get();
+            if(enableAccessLog()) {
+                logger.info("Executing batch of {} queries, for user {}", queries.size(), validated);
+            }
+            for (int i = 0; i < queries.size(); i++) {
+                if (isRegistration(queries.get(i)) && isValidDocument(results.get(i))) {
+                    registerPersistedQuery(queries.get(i));
+                }
+            }
+            return results;
+        } catch (final ExecutionException e) {
+            if (!(e.getCause() instanceof AccessDeniedError)) {
+                throw e;
+            }
+            logger.error("Failed to validate user", e);
+            final var denied = batchError((AccessDeniedError) e.getCause());
+            return Collections.nCopies(queries.size(), denied);
+        }
+    }
+
+    private List<ExecutionResult> executeBatch(final List<GraphQLQuery> queries, final List<CompletableFuture<GraphQLQuery>> resolved, final CompletableFuture<U> user, final Deadline deadline, final boolean traced, final RequestMetrics requestMetrics) throws InterruptedException, ExecutionException {
+        PendingContext<U, C> shared = null;
+        final List<PendingContext<U, C>> contexts = new ArrayList<>(queries.size());
+        final List<CompletableFuture<ExecutionResult>> responses = new ArrayList<>(queries.size());
+        for (final var future : resolved) {
+            final GraphQLQuery query;
+            try {
+                query = future.get();
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof PersistedQueryNotFound || e.getCause() instanceof PersistedQueryHashMismatch) {
+                    responses.add(CompletableFuture.completedFuture(batchError((GraphQLError) e.getCause())));
+                    continue;
+                }
+                throw e;
+            }
+            if (shareBatchContext()) {
+                if (shared == null) {
+                    shared = new PendingContext<U, C>(user, u -> buildContext(u, query), requestMetrics, false, deadline).traced(traced);
+                    contexts.add(shared);
+                }
+                responses.add(execute(query, contextFor(shared, user)));
+            } else {
+                final var pending = new PendingContext<U, C>(user, u -> buildContext(u, query), requestMetrics, false, deadline).traced(traced);
+                final var queryResponse = execute(query, contextFor(pending, user));
+                pending.getContext().thenAccept(graphContext -> graphContext.start(queryResponse, deadline));
+                contexts.add(pending);
+                responses.add(queryResponse);
+            }
+        }
+        if (shared != null) {
+            final var all = CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new));
+            shared.getContext().thenAccept(graphContext -> graphContext.start(all, deadline));
+        }
+
+        final List<ExecutionResult> results = new ArrayList<>(responses.size());
+        for (final var response : responses) {
+            results.add(await(response, deadline));
+        }
+        contexts.forEach(AbstractLambdaGraphQL::recordDataLoaders);
+        return results;
+    }
+
+    private static void recordDataLoaders(final PendingContext<?, ? extends ContextGraphQL> pending) {
+        final var context = pending.getContext();
+        if (pending.getMetrics() == RequestMetrics.NOOP || !context.isDone() || context.isCompletedExceptionally()) {
+            return;
+        }
+        final var registry = context.join().getDataLoaderRegistry();
+        if (registry != null) {
+            pending.getMetrics().dataLoaders(registry.getStatistics());
+        }
+    }
+
+    /**
+     * waits for the result, giving up half way through the deadline margin on resolvers that ignored the deadline
+     */
+    private ExecutionResult await(final CompletableFuture<ExecutionResult> response, final Deadline deadline) throws InterruptedException, ExecutionException {
+        if (!deadline.isBounded()) {
+            return response.get();
+        }
+        try {
+            return response.get(deadline.remainingMillis() + deadlineMargin().toMillis() / 2, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            logger.warn("Request still running past its deadline");
+            response.cancel(true);
+            return ExecutionResultImpl.newExecutionResult().addError(DeadlineInstrumentation.deadlineExceeded()).build();
+        }
+    }
+
+    private static boolean isBatch(final String body) {
+        for (int i = 0; i < body.length(); i++) {
+            final char c = body.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * batches are written with the same serialization as results so errors are rebuilt as plain graphql errors
+     */
+    private static ExecutionResult batchError(final GraphQLError error) {
+        final var plain = GraphqlErrorBuilder.newError()
+                .message(error.getMessage())
+                .errorType(error.getErrorType())
+                .extensions(error.getExtensions())
+                .build();
+        return ExecutionResultImpl.newExecutionResult().addError(plain).build();
+    }
+
+    private GraphQLResponse respond(final Map<String, String> headers, final BodyWriter writer, final RequestMetrics requestMetrics) throws IOException {
+        return respond(acceptedEncoding(headers), writer, requestMetrics);
+    }
+
+    private GraphQLResponse respond(final ResponseCompressor.Encoding encoding, final BodyWriter writer, final RequestMetrics requestMetrics) throws IOException {
+        final var buffer = new ResponseBuffer();
+        final long start = System.nanoTime();
+        if (encoding != null) {
+            final var compressed = compressor.compress(encoding, buffer);
+            writer.write(compressed);
+            final long compression = compressed.getCompressionNanos();
+            requestMetrics.time(Phase.SERIALIZATION, System.nanoTime() - start - compression);
+            requestMetrics.responseBytes(compressed.getBytesIn(), buffer.size());
+            if (compressed.isCompressed()) {
+                requestMetrics.time(Phase.COMPRESSION, compression);
+                final var responseHeader = new HashMap<>(Constants.GRAPHQL_RESPONSE_HEADERS);
+                responseHeader.put(CONTENT_ENCODING, encoding.getHeaderValue());
+                return new GraphQLResponse(200, responseHeader, buffer.buffer(), buffer.size(), true);
+            }
+        } else {
+            writer.write(buffer);
+            requestMetrics.timeSince(Phase.SERIALIZATION, start);
+            requestMetrics.responseBytes(buffer.size(), buffer.size());
+        }
+        return new GraphQLResponse(200, Constants.GRAPHQL_RESPONSE_HEADERS, buffer.buffer(), buffer.size(), false);
+    }
+
+    private GraphQLResponse errorResponse(final GraphQLError error) {
+        return errorResponse(200, error);
+    }
+
+    private GraphQLResponse errorResponse(final int statusCode, final GraphQLError error) {
+        final var result = ExecutionResultImpl.newExecutionResult().addError(error).build();
+        return new GraphQLResponse(statusCode, Constants.GRAPHQL_RESPONSE_HEADERS, executionResultSpecification(result));
+    }
+
+    private CompletableFuture<GraphQLQuery> resolvePersistedQuery(final GraphQLQuery query) {
+        final var hash = query.getPersistedQueryHash();
+        if (hash == null || persistedQueries == null) {
+            return CompletableFuture.completedFuture(query);
+        }
+        if (query.getQuery() == null || query.getQuery().isEmpty()) {
+            return persistedQueries.lookup(hash.toLowerCase()).thenApply(text -> {
+                if (text == null) {
+                    throw new PersistedQueryNotFound();
+                }
+                return query.withQuery(text);
+            });
+        }
+        if (!DocumentCache.hash(query.getQuery()).equalsIgnoreCase(hash)) {
+            return CompletableFuture.failedFuture(new PersistedQueryHashMismatch());
+        }
+        // registered once the user is validated and the document is known to be valid
+        return CompletableFuture.completedFuture(query);
+    }
+
+    /**
+     * @return if the request sent the query text along with its hash, so the text is registered once it runs
+     */
+    private boolean isRegistration(final GraphQLQuery request) {
+        return persistedQueries != null && request.getPersistedQueryHash() != null && request.getQuery() != null && !request.getQuery().isEmpty();
+    }
+
+    private static boolean isValidDocument(final ExecutionResult result) {
+        for (final var error : result.getErrors()) {
+            if (error.getErrorType() == ErrorType.InvalidSyntax || error.getErrorType() == ErrorType.ValidationError) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * best effort, the response does not wait on the registry and a failure is only logged as the client resends the
+     * query text when the hash is not found
+     */
+    private void registerPersistedQuery(final GraphQLQuery query) {
+        final var hash = query.getPersistedQueryHash();
+        final CompletableFuture<Void> registered;
+        try {
+            registered = persistedQueries.register(hash.toLowerCase(), query.getQuery());
+        } catch (final RuntimeException e) {
+            logger.warn("Failed to register persisted query {}", hash, e);
+            return;
+        }
+        registered.whenComplete((__, error) -> {
+            if (error != null) {
+                logger.warn("Failed to register persisted query {}", hash, error);
+            }
+        });
+    }
+
+    private ResponseCompressor.Encoding acceptedEncoding(Map<String, String> headers) {
+        if (!enableGzipCompression()) {
+            return null;
+        }
+
+        var acceptEncodingHeader = header(headers, ACCEPT_ENCODING);
+        if (acceptEncodingHeader == null) {
+            return null;
+        }
+
+        var deflate = false;
+        for (var coding : acceptEncodingHeader.trim().split("\\s*,\\s*")) {
+            var parts = coding.split("\\s*;\\s*");
+            if (parts.length > 1 && parts[1].matches("[qQ]=0(\\.0*)?")) {
+                continue;
+            }
+            if (parts[0].equalsIgnoreCase("gzip")) {
+                return ResponseCompressor.Encoding.GZIP;
+            }
+            deflate |= parts[0].equalsIgnoreCase("deflate");
+        }
+        return deflate ? ResponseCompressor.Encoding.DEFLATE : null;
+    }
+
+    private String executionResultSpecification(final ExecutionResult result) {
+        try {
+            return mapper.writeValueAsString(result.toSpecification());
+        } catch (final JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected ObjectMapper builderObjectMapper() {
+        return SchemaBuilder.MAPPER;
+    }
+
+    protected abstract GraphQL buildGraphQL() throws Exception;
+
+    protected abstract CompletableFuture<U> validate(String authHeader);
+
+    protected abstract C buildContext(U user, GraphQLQuery query);
+
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * hands out the backing array so the body is not copied again
+     */
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+/**
+ * Counters of a {@link LambdaCache} since it was created, see {@link LambdaCache#stats()}. Counters only grow, so two
+ * snapshots can be subtracted to get the activity of a single invocation.
+ */
+public class CacheStats {
+
+	private final String name;
+	private final long hits;
+	private final long misses;
+	private final long loads;
+	private final long loadFailures;
+	private final long loadNanos;
+	private final long expiredEvictions;
+	private final long sizeEvictions;
+	private final long failureEvictions;
+	private final long size;
+
+	public CacheStats(String name, long hits, long misses, long loads, long loadFailures, long loadNanos, long expiredEvictions, long sizeEvictions, long failureEvictions, long size) {
+		this.name = name;
+		this.hits = hits;
+		this.misses = misses;
+		this.loads = loads;
+		this.loadFailures = loadFailures;
+		this.loadNanos = loadNanos;
+		this.expiredEvictions = expiredEvictions;
+		this.sizeEvictions = sizeEvictions;
+		this.failureEvictions = failureEvictions;
+		this.size = size;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return reads served from the cache, including reads of a value still loading
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return reads that had to load the value
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return loads that succeeded, including background refreshes. Futures count once they complete
+	 */
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * @return loads that threw or whose future failed
+	 */
+	public long getLoadFailures() {
+		return loadFailures;
+	}
+
+	/**
+	 * @return total time spent loading, up to the completion of the future for asynchronous loads
+	 */
+	public long getLoadNanos() {
+		return loadNanos;
+	}
+
+	/**
+	 * @return entries dropped because their time to live ran out
+	 */
+	public long getExpiredEvictions() {
+		return expiredEvictions;
+	}
+
+	/**
+	 * @return entries dropped to stay within the maximum size or weight
+	 */
+	public long getSizeEvictions() {
+		return sizeEvictions;
+	}
+
+	/**
+	 * @return failed futures dropped as soon as they failed
+	 */
+	public long getFailureEvictions() {
+		return failureEvictions;
+	}
+
+	/**
+	 * @return entries held when the snapshot was taken
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return share of reads served from the cache, 0 when there were no reads
+	 */
+	public double getHitRate() {
+		long requests = hits + misses;
+		return requests == 0 ? 0 : hits / (double) requests;
+	}
+
+	/**
+	 * @return average time of a load, 0 when nothing was loaded
+	 */
+	public double getAverageLoadNanos() {
+		long count = loads + loadFailures;
+		return count == 0 ? 0 : loadNanos / (double) count;
+	}
+
+	/**
+	 * @param other stats of another cache of the same name
+	 * @return the combined counters
+	 */
+	public CacheStats plus(CacheStats other) {
+		return new CacheStats(name, hits + other.hits, misses + other.misses, loads + other.loads, loadFailures + other.loadFailures, loadNanos + other.loadNanos,
+				expiredEvictions + other.expiredEvictions, sizeEvictions + other.sizeEvictions, failureEvictions + other.failureEvictions, size + other.size);
+	}
+
+	/**
+	 * @param earlier a previous snapshot of the same cache
+	 * @return the activity since the earlier snapshot, the size is kept as is
+	 */
+	public CacheStats minus(CacheStats earlier) {
+		return new CacheStats(name, hits - earlier.hits, misses - earlier.misses, loads - earlier.loads, loadFailures - earlier.loadFailures, loadNanos - earlier.loadNanos,
+				expiredEvictions - earlier.expiredEvictions, sizeEvictions - earlier.sizeEvictions, failureEvictions - earlier.failureEvictions, size);
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats [name=" + name + ", hits=" + hits + ", misses=" + misses + ", loads=" + loads + ", loadFailures=" + loadFailures + ", loadNanos=" + loadNanos
+				+ ", expiredEvictions=" + expiredEvictions + ", sizeEvictions=" + sizeEvictions + ", failureEvictions=" + failureEvictions + ", size=" + size + "]";
+	}
+}
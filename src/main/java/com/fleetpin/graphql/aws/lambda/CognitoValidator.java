@@ -13,21 +13,34 @@ package com.fleetpin.graphql.aws.lambda;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.auth0.jwk.Jwk;
-import com.auth0.jwk.JwkProvider;
-import com.auth0.jwk.JwkProviderBuilder;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.InvalidClaimException;
+import com.auth0.jwt.exceptions.TokenExpiredException;
 import com.auth0.jwt.interfaces.RSAKeyProvider;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.google.common.hash.Hashing;
 
 /**
  * seems madness that AWS does not have this in a library maybe I missed something...
@@ -36,19 +49,91 @@ import com.fleetpin.graphql.builder.SchemaBuilder;
  */
 public class CognitoValidator {
 
+	private static final Logger logger = LoggerFactory.getLogger(CognitoValidator.class);
+
+	private final AwsCognitoRSAKeyProvider keyProvider;
 	private JWTVerifier jwtVerifier;
+	private LambdaCache<String, JsonNode> claims;
 
 
 	public CognitoValidator(String region, String userPoolsId) {
-		RSAKeyProvider keyProvider = new AwsCognitoRSAKeyProvider(region, userPoolsId);
+		this(new AwsCognitoRSAKeyProvider(region, userPoolsId));
+	}
+
+	/**
+	 * @param jwks where the key set is read from, a file or classpath resource url validates with no network access
+	 */
+	public CognitoValidator(URL jwks) {
+		this(new AwsCognitoRSAKeyProvider(jwks));
+	}
+
+	/**
+	 * fetches the keys straight away so the first request does not wait on them, if that fails they are fetched when
+	 * first needed
+	 * @param keyProvider where the signing keys come from
+	 */
+	public CognitoValidator(AwsCognitoRSAKeyProvider keyProvider) {
+		this.keyProvider = keyProvider;
 		Algorithm algorithm = Algorithm.RSA256(keyProvider);
 		this.jwtVerifier = JWT.require(algorithm)
 		    .build();
+		try {
+			prime();
+		} catch (RuntimeException e) {
+			logger.warn("Failed to prefetch signing keys", e);
+		}
 	}
 
+	/**
+	 * fetches the signing keys, call before a snapshot is taken so restored lambdas have them
+	 */
+	public void prime() {
+		keyProvider.refresh();
+	}
 	
-	
+	/**
+	 * keeps the claims of verified tokens so a token presented again skips the signature check, expiry and not
+	 * before are still checked on every use
+	 * @param maximumSize most tokens kept
+	 * @param ttl longest a token is kept, tokens expiring sooner are rejected once they expire
+	 * @return this
+	 */
+	public CognitoValidator cacheClaims(long maximumSize, Duration ttl) {
+		this.claims = new LambdaCache<String, JsonNode>(ttl, null).name("claims").maximumSize(maximumSize);
+		return this;
+	}
+
+	/**
+	 * @return hits and misses of the claims cache, null when claims are not cached
+	 */
+	public CacheStats getClaimsStats() {
+		return claims == null ? null : claims.getStats();
+	}
+
+	/**
+	 * @param token the jwt
+	 * @return the claims, shared between calls when they are cached so must not be modified
+	 */
 	public JsonNode verify(String token) {
+		if(claims == null) {
+			return decode(token);
+		}
+		var digest = Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+		var payload = claims.get(digest, () -> decode(token));
+		// same comparisons as the verifier, claims are in seconds
+		long now = System.currentTimeMillis();
+		var expires = payload.get("exp");
+		if(expires != null && now > expires.asLong() * 1000) {
+			throw new TokenExpiredException("The Token has expired on " + expires.asLong() + ".");
+		}
+		var notBefore = payload.get("nbf");
+		if(notBefore != null && now < notBefore.asLong() * 1000) {
+			throw new InvalidClaimException("The Token can't be used before " + notBefore.asLong() + ".");
+		}
+		return payload;
+	}
+
+	private JsonNode decode(String token) {
 		var verified = jwtVerifier.verify(token);
 		try {
 			return SchemaBuilder.MAPPER.readTree(Base64.getDecoder().decode(verified.getPayload()));
@@ -57,40 +142,167 @@ public class CognitoValidator {
 		}
 	}
 	
-	
+	/**
+	 * Keeps the key set in memory by kid. Keys are fetched again once older than the time to live, or when a token
+	 * names a kid that is not known as the keys may have been rotated. Fetches are at most once per refresh interval
+	 * so tokens with made up kids can not hammer the endpoint, and a failed fetch keeps the keys already held.
+	 * Callers arriving while a fetch is running wait on that fetch rather than starting another.
+	 */
 	public static class AwsCognitoRSAKeyProvider implements RSAKeyProvider {
 
-	    private final URL aws_kid_store_url;
-
-	    public AwsCognitoRSAKeyProvider(String aws_cognito_region, String aws_user_pools_id) {
-	        String url = String.format("https://cognito-idp.%s.amazonaws.com/%s/.well-known/jwks.json", aws_cognito_region, aws_user_pools_id);
-	        try {
-	            this.aws_kid_store_url = new URL(url);
-	        } catch (MalformedURLException e) {
-	            throw new RuntimeException(String.format("Invalid URL provided, URL=%s", url));
-	        }
-	    }
-
-
-	    @Override
-	    public RSAPublicKey getPublicKeyById(String kid) {
-	        try {
-	            JwkProvider provider = new JwkProviderBuilder(aws_kid_store_url).build();
-	            Jwk jwk = provider.get(kid);
-	            return (RSAPublicKey) jwk.getPublicKey();
-	        } catch (Exception e) {
-	            throw new RuntimeException(String.format("Failed to get JWT kid=%s from aws_kid_store_url=%s", kid, aws_kid_store_url));
-	        }
-	    }
-
-	    @Override
-	    public RSAPrivateKey getPrivateKey() {
-	        return null;
-	    }
-
-	    @Override
-	    public String getPrivateKeyId() {
-	        return null;
-	    }
+		private static final Duration DEFAULT_TTL = Duration.ofHours(6);
+		private static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(30);
+		private static final int TIMEOUT_MILLIS = 2_000;
+
+		private final URL aws_kid_store_url;
+		private final long ttl;
+		private final long refreshInterval;
+
+		private volatile Map<String, RSAPublicKey> keys = Map.of();
+		private volatile long loadedAt;
+		// guarded by this
+		private long attemptedAt;
+		private boolean attempted;
+		private CompletableFuture<Void> fetching;
+
+		public AwsCognitoRSAKeyProvider(String aws_cognito_region, String aws_user_pools_id) {
+			this(cognitoUrl(aws_cognito_region, aws_user_pools_id));
+		}
+
+		public AwsCognitoRSAKeyProvider(URL jwks) {
+			this(jwks, DEFAULT_TTL, DEFAULT_REFRESH_INTERVAL);
+		}
+
+		/**
+		 * @param jwks where the key set is read from, any url java can open including file and classpath resources
+		 * @param ttl how long fetched keys are used before fetching again
+		 * @param refreshInterval least time between fetches
+		 */
+		public AwsCognitoRSAKeyProvider(URL jwks, Duration ttl, Duration refreshInterval) {
+			this.aws_kid_store_url = jwks;
+			this.ttl = ttl.toNanos();
+			this.refreshInterval = refreshInterval.toNanos();
+		}
+
+		private static URL cognitoUrl(String aws_cognito_region, String aws_user_pools_id) {
+			String url = String.format("https://cognito-idp.%s.amazonaws.com/%s/.well-known/jwks.json", aws_cognito_region, aws_user_pools_id);
+			try {
+				return new URL(url);
+			} catch (MalformedURLException e) {
+				throw new RuntimeException(String.format("Invalid URL provided, URL=%s", url));
+			}
+		}
+
+		@Override
+		public RSAPublicKey getPublicKeyById(String kid) {
+			var key = keys.get(kid);
+			if(key == null || System.nanoTime() - loadedAt >= ttl) {
+				var fetch = fetch(false);
+				if(fetch != null) {
+					try {
+						fetch.join();
+					} catch (CompletionException e) {
+						logger.warn("Failed to fetch signing keys from {}", aws_kid_store_url, e.getCause());
+					}
+					key = keys.get(kid);
+				}
+			}
+			if(key == null) {
+				throw new RuntimeException(String.format("Failed to get JWT kid=%s from aws_kid_store_url=%s", kid, aws_kid_store_url));
+			}
+			return key;
+		}
+
+		/**
+		 * fetches the key set now, or waits on the fetch already running
+		 */
+		public void refresh() {
+			try {
+				fetch(true).join();
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * only deciding who fetches holds the lock, the request itself runs outside it
+		 * @param force fetch even if the last attempt was within the refresh interval
+		 * @return the running fetch, null if it is too soon to try again
+		 */
+		private CompletableFuture<Void> fetch(boolean force) {
+			CompletableFuture<Void> fetch;
+			synchronized (this) {
+				if(fetching != null) {
+					return fetching;
+				}
+				if(!force && attempted && System.nanoTime() - attemptedAt < refreshInterval) {
+					return null;
+				}
+				attempted = true;
+				attemptedAt = System.nanoTime();
+				fetch = fetching = new CompletableFuture<>();
+			}
+			Throwable failure = null;
+			try {
+				keys = parse(read());
+				loadedAt = System.nanoTime();
+			} catch (Throwable e) {
+				failure = e;
+			}
+			synchronized (this) {
+				fetching = null;
+			}
+			if(failure == null) {
+				fetch.complete(null);
+			} else {
+				fetch.completeExceptionally(failure);
+			}
+			return fetch;
+		}
+
+		private JsonNode read() {
+			try {
+				var connection = aws_kid_store_url.openConnection();
+				connection.setConnectTimeout(TIMEOUT_MILLIS);
+				connection.setReadTimeout(TIMEOUT_MILLIS);
+				try (var in = connection.getInputStream()) {
+					return SchemaBuilder.MAPPER.readTree(in);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private static Map<String, RSAPublicKey> parse(JsonNode jwks) {
+			try {
+				var factory = KeyFactory.getInstance("RSA");
+				var decoder = Base64.getUrlDecoder();
+				var parsed = new HashMap<String, RSAPublicKey>();
+				for(var jwk : jwks.path("keys")) {
+					if(!"RSA".equals(jwk.path("kty").asText())) {
+						continue;
+					}
+					var modulus = new BigInteger(1, decoder.decode(jwk.path("n").asText()));
+					var exponent = new BigInteger(1, decoder.decode(jwk.path("e").asText()));
+					parsed.put(jwk.path("kid").asText(), (RSAPublicKey) factory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+				}
+				return Map.copyOf(parsed);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Invalid key in key set", e);
+			}
+		}
+
+		@Override
+		public RSAPrivateKey getPrivateKey() {
+			return null;
+		}
+
+		@Override
+		public String getPrivateKeyId() {
+			return null;
+		}
 	}
 }
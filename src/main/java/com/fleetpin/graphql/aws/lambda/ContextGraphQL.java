@@ -13,9 +13,30 @@ package com.fleetpin.graphql.aws.lambda;
 
 import java.util.concurrent.CompletionStage;
 
+import org.dataloader.DataLoaderRegistry;
+
 import com.fleetpin.graphql.builder.annotations.Context;
 
 @Context
 public interface ContextGraphQL{
 	void start(CompletionStage<?> complete);
+
+	/**
+	 * called instead of {@link #start(CompletionStage)} for requests with a deadline, contexts that keep the deadline
+	 * let resolvers give up on work that cannot finish in time
+	 * @param complete completes once the request has executed
+	 * @param deadline when the request is cut short, {@link Deadline#NONE} if it has no limit
+	 */
+	default void start(CompletionStage<?> complete, Deadline deadline) {
+		start(complete);
+	}
+
+	/**
+	 * loaders in the registry are dispatched by graphql as fields complete, so keys from every field at a level are
+	 * loaded in one batch. Build a new registry with each context, its statistics are reported as the request's metrics.
+	 * @return the data loaders of this request, null if it has none
+	 */
+	default DataLoaderRegistry getDataLoaderRegistry() {
+		return null;
+	}
 }
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.time.Duration;
+
+/**
+ * Point in time a request has to be answered by, usually the lambda's remaining time less a margin to write the
+ * response. Based on {@link System#nanoTime()} so it is not affected by clock changes.
+ */
+public final class Deadline {
+
+	/**
+	 * no deadline, requests run until they complete
+	 */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE, false);
+
+	private final long expiresAt;
+	private final boolean bounded;
+
+	private Deadline(long expiresAt, boolean bounded) {
+		this.expiresAt = expiresAt;
+		this.bounded = bounded;
+	}
+
+	/**
+	 * @param timeout time from now, negative durations give an already expired deadline
+	 * @return the deadline
+	 */
+	public static Deadline after(Duration timeout) {
+		return new Deadline(System.nanoTime() + timeout.toNanos(), true);
+	}
+
+	/**
+	 * @return false for {@link #NONE}
+	 */
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	public boolean isExpired() {
+		return bounded && System.nanoTime() - expiresAt >= 0;
+	}
+
+	/**
+	 * @return milliseconds left, zero once expired and {@link Long#MAX_VALUE} without a deadline
+	 */
+	public long remainingMillis() {
+		if(!bounded) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, (expiresAt - System.nanoTime()) / 1_000_000);
+	}
+}
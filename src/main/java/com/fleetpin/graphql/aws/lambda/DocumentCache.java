@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.hash.Hashing;
+
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+
+/**
+ * Keeps the parsed and validated documents of recently seen queries so warm lambdas skip straight to execution.
+ * Entries are keyed by the sha256 of the query text and the operation name, least recently used entries are dropped
+ * once the cache is full. Documents that failed to parse or validate are never cached.
+ */
+public class DocumentCache implements PreparsedDocumentProvider {
+
+	private final Map<DocumentKey, PreparsedDocumentEntry> documents;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public DocumentCache(int maximumSize) {
+		if(maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive " + maximumSize);
+		}
+		this.documents = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<DocumentKey, PreparsedDocumentEntry> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	@Override
+	public PreparsedDocumentEntry getDocument(ExecutionInput executionInput, Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction) {
+		var key = new DocumentKey(hash(executionInput.getQuery()), executionInput.getOperationName());
+		PreparsedDocumentEntry entry;
+		synchronized (documents) {
+			entry = documents.get(key);
+		}
+		if(entry != null) {
+			hits.increment();
+			return entry;
+		}
+		misses.increment();
+		entry = parseAndValidateFunction.apply(executionInput);
+		if(!entry.hasErrors()) {
+			synchronized (documents) {
+				documents.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		synchronized (documents) {
+			return documents.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (documents) {
+			documents.clear();
+		}
+	}
+
+	/**
+	 * @param query the query text
+	 * @return lower case hex sha256 of the query, the same form apollo clients use for persisted queries
+	 */
+	public static String hash(String query) {
+		return Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString();
+	}
+
+	private static class DocumentKey {
+		private final String queryHash;
+		private final String operationName;
+
+		public DocumentKey(String queryHash, String operationName) {
+			this.queryHash = queryHash;
+			this.operationName = operationName;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(queryHash, operationName);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) {
+				return true;
+			}
+			if(!(obj instanceof DocumentKey)) {
+				return false;
+			}
+			var other = (DocumentKey) obj;
+			return queryHash.equals(other.queryHash) && Objects.equals(operationName, other.operationName);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static com.fleetpin.graphql.aws.lambda.Constants.ID;
+import static com.fleetpin.graphql.aws.lambda.Constants.TTL;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+
+/**
+ * Shared second level behind a {@link LambdaCache}, so a cold container can take values another container already
+ * loaded instead of going to the source. Wrap the cache's loader with {@link #loader(Function)}: an L1 miss reads the
+ * table first and only loads from the source when the table has nothing current, writing what it loaded back.
+ * <p>
+ * The table needs a string hash key called id and time to live turned on for the ttl attribute. Items hold the value
+ * as encoded by the {@link Codec} with the codec's version, items of another version are treated as missing so a
+ * deploy can change the encoding. Expiry is also checked on read as DynamoDB removes expired items lazily.
+ * Failing to read or write the table falls back to the source. Null values, such as misses a cache keeps with
+ * {@link LambdaCache#negativeTTL}, are not shared.
+ * <p>
+ * The loader can not tell a refresh from a miss, so a {@link LambdaCache#refreshAfterWrite} refresh also reads the
+ * table first. Keep the tier's ttl at most the cache's refresh time: the item a container loaded is then always
+ * expired by the time it refreshes, and the refresh goes to the source instead of reading back the value it holds.
+ */
+public class DynamoCacheTier<T> {
+
+	private static final Logger logger = LoggerFactory.getLogger(DynamoCacheTier.class);
+
+	private static final String VERSION = "version";
+	private static final String VALUE = "value";
+
+	private final Supplier<DynamoDbManager> manager;
+	private final String table;
+	private final String name;
+	private final Duration ttl;
+	private final Codec<T> codec;
+	private final Map<String, CompletableFuture<T>> loading = new ConcurrentHashMap<>();
+
+	public DynamoCacheTier(DynamoDbManager manager, String table, String name, Duration ttl, Codec<T> codec) {
+		this(() -> manager, table, name, ttl, codec);
+	}
+
+	/**
+	 * @param manager to reach the table, asked for on every call as it can change after a snapshot restore
+	 * @param table where values are shared
+	 * @param name prefixes the keys so caches can share a table
+	 * @param ttl how long a value written to the table is used for, at most the refresh time of a refreshing cache
+	 * @param codec converts values to and from the table
+	 */
+	public DynamoCacheTier(Supplier<DynamoDbManager> manager, String table, String name, Duration ttl, Codec<T> codec) {
+		this.manager = manager;
+		this.table = table;
+		this.name = name;
+		this.ttl = ttl;
+		this.codec = codec;
+	}
+
+	/**
+	 * @param source loads a value the table does not have
+	 * @return loader for the {@link LambdaCache}, concurrent loads of a key in this container share one table read
+	 * and source load
+	 */
+	public Function<String, CompletableFuture<T>> loader(Function<String, CompletableFuture<T>> source) {
+		return key -> {
+			var future = new CompletableFuture<T>();
+			var existing = loading.putIfAbsent(key, future);
+			if(existing != null) {
+				return existing;
+			}
+			future.whenComplete((value, error) -> loading.remove(key, future));
+			try {
+				load(key, source).whenComplete((value, error) -> {
+					if(error != null) {
+						future.completeExceptionally(error);
+					}else {
+						future.complete(value);
+					}
+				});
+			}catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		};
+	}
+
+	private CompletableFuture<T> load(String key, Function<String, CompletableFuture<T>> source) {
+		return read(key).exceptionally(error -> {
+			logger.warn("Failed to read {} from cache table", key, error);
+			return null;
+		}).thenCompose(cached -> {
+			if(cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			// waits for the write so once a load is done other containers can see it
+			return source.apply(key).thenCompose(value -> write(key, value).thenApply(__ -> value));
+		});
+	}
+
+	private CompletableFuture<T> read(String key) {
+		return manager.get().getDynamoDbAsyncClient().getItem(t -> t.tableName(table).key(key(key))).thenApply(this::decode);
+	}
+
+	private T decode(GetItemResponse response) {
+		if(!response.hasItem()) {
+			return null;
+		}
+		var item = response.item();
+		var version = item.get(VERSION);
+		var expires = item.get(TTL);
+		var value = item.get(VALUE);
+		if(version == null || expires == null || value == null || Integer.parseInt(version.n()) != codec.version()) {
+			return null;
+		}
+		if(Long.parseLong(expires.n()) * 1000 <= System.currentTimeMillis()) {
+			return null;
+		}
+		return codec.decode(value);
+	}
+
+	private CompletableFuture<Void> write(String key, T value) {
+		if(value == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		var encoded = codec.encode(value);
+		if(encoded == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		var item = key(key);
+		item.put(VERSION, AttributeValue.builder().n(Integer.toString(codec.version())).build());
+		item.put(VALUE, encoded);
+		item.put(TTL, AttributeValue.builder().n(Long.toString((System.currentTimeMillis() + ttl.toMillis()) / 1000)).build());
+		return manager.get().getDynamoDbAsyncClient().putItem(t -> t.tableName(table).item(item)).handle((response, error) -> {
+			if(error != null) {
+				logger.warn("Failed to write {} to cache table", key, error);
+			}
+			return null;
+		});
+	}
+
+	private Map<String, AttributeValue> key(String key) {
+		final Map<String, AttributeValue> item = new HashMap<>();
+		item.put(ID, AttributeValue.builder().s(name + ":" + key).build());
+		return item;
+	}
+
+	/**
+	 * How values are stored in the table.
+	 */
+	public interface Codec<T> {
+
+		/**
+		 * @return changed whenever the encoding changes, items written with another version are ignored
+		 */
+		int version();
+
+		/**
+		 * @param value a value that was loaded, never null as nulls are not shared
+		 * @return what is stored, null to not share this value
+		 */
+		AttributeValue encode(T value);
+
+		/**
+		 * @param value what was stored
+		 * @return the value
+		 */
+		T decode(AttributeValue value);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.ExecutionResult;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes an {@link ExecutionResult} straight to a stream, producing the same json as serializing the result with the
+ * mapper but without building the intermediate tree. Empty errors are left out as they are written.
+ */
+public class ExecutionResultWriter {
+
+    private final ObjectMapper mapper;
+
+    public ExecutionResultWriter(final ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param result the result to write
+     * @param out closed once the result is written
+     */
+    public void write(final ExecutionResult result, final OutputStream out) throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            write(result, generator);
+        }
+    }
+
+    /**
+     * @param results the results of a batched request, written as an array in the same order
+     * @param out closed once the results are written
+     */
+    public void write(final List<? extends ExecutionResult> results, final OutputStream out) throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.writeStartArray();
+            for (final var result : results) {
+                write(result, generator);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void write(final ExecutionResult result, final JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        if (result.getErrors() != null && !result.getErrors().isEmpty()) {
+            generator.writeObjectField(Constants.GRAPHQL_ERRORS_FIELD, result.getErrors());
+        }
+        generator.writeObjectField("data", result.getData());
+        generator.writeBooleanField("dataPresent", result.isDataPresent());
+        generator.writeObjectField("extensions", result.getExtensions());
+        generator.writeEndObject();
+    }
+}
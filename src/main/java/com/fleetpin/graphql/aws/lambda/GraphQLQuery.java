@@ -12,6 +12,8 @@
 package com.fleetpin.graphql.aws.lambda;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.Collections;
@@ -21,16 +23,28 @@ public class GraphQLQuery {
     private final String operationName;
     private final String query;
     private final Map<String, Object> variables;
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    private final Map<String, Object> extensions;
+
+    public GraphQLQuery(
+            final String operationName,
+            final String query,
+            final Map<String, Object> variables
+    ) {
+        this(operationName, query, variables, null);
+    }
 
     @JsonCreator
     public GraphQLQuery(
             @JsonProperty("operationName") final String operationName,
             @JsonProperty("query") final String query,
-            @JsonProperty("variables") final Map<String, Object> variables
+            @JsonProperty("variables") final Map<String, Object> variables,
+            @JsonProperty("extensions") final Map<String, Object> extensions
     ) {
         this.operationName = operationName;
         this.query = query;
         this.variables = variables;
+        this.extensions = extensions;
     }
 
     public String getOperationName() {
@@ -47,4 +61,28 @@ public class GraphQLQuery {
         }
         return variables;
     }
+
+    public Map<String, Object> getExtensions() {
+        if (extensions == null) {
+            return Collections.emptyMap();
+        }
+        return extensions;
+    }
+
+    /**
+     * @return the sha256 hash from the apollo persisted query extension or null if not present
+     */
+    @JsonIgnore
+    public String getPersistedQueryHash() {
+        final var persistedQuery = getExtensions().get("persistedQuery");
+        if (!(persistedQuery instanceof Map)) {
+            return null;
+        }
+        final var hash = ((Map<?, ?>) persistedQuery).get("sha256Hash");
+        return hash == null ? null : hash.toString();
+    }
+
+    public GraphQLQuery withQuery(final String query) {
+        return new GraphQLQuery(operationName, query, variables, extensions);
+    }
 }
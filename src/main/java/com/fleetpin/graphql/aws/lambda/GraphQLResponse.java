@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The http response of a graphql request, independent of how the lambda hands it back to API gateway.
+ * The body is kept as utf-8 bytes so it can be written out without another copy.
+ */
+public class GraphQLResponse {
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private final int bodyLength;
+    private final boolean base64Encoded;
+
+    public GraphQLResponse(final int statusCode, final Map<String, String> headers, final byte[] body, final int bodyLength, final boolean base64Encoded) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.bodyLength = bodyLength;
+        this.base64Encoded = base64Encoded;
+    }
+
+    public GraphQLResponse(final int statusCode, final Map<String, String> headers, final String body) {
+        this(statusCode, headers, body.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private GraphQLResponse(final int statusCode, final Map<String, String> headers, final byte[] body, final boolean base64Encoded) {
+        this(statusCode, headers, body, body.length, base64Encoded);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return buffer holding the body, only the first {@link #getBodyLength()} bytes are part of the body
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public String getBodyAsString() {
+        return new String(body, 0, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    public boolean isBase64Encoded() {
+        return base64Encoded;
+    }
+}
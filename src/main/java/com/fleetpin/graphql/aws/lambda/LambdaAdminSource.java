@@ -7,6 +7,9 @@ import com.fleetpin.graphql.aws.lambda.admin.User;
 import com.fleetpin.graphql.aws.lambda.subscription.SubscriptionResponseKeepAlive;
 import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
 import graphql.GraphQL;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.core.SdkBytes;
@@ -18,35 +21,70 @@ import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
-public abstract class LambdaAdminSource<U extends User, E> implements RequestHandler<E, Void> {
+public abstract class LambdaAdminSource<U extends User, E> implements RequestHandler<E, Void>, Resource {
 
     private static final Logger logger = LoggerFactory.getLogger(LambdaAdminSource.class);
 
-    private final Admin<U> admin;
-    private final DynamoDbManager manager;
-    private final ApiGatewayManagementApiAsyncClient gatewayApi;
+    private volatile Admin<U> admin;
+    private volatile DynamoDbManager manager;
+    private volatile ApiGatewayManagementApiAsyncClient gatewayApi;
+    private final GraphQL graph;
+    private final String subscriptionTable;
+    private final URI gatewayUri;
     private final long sentMessageTimeout;
 
     public LambdaAdminSource(final String subscriptionTable, final String gatewayUri) throws Exception {
-        final GraphQL graph = buildGraphQL()
+        this.graph = buildGraphQL()
                 .subscriptionExecutionStrategy(new InterceptExecutionStrategy())
                 .build();
+        this.subscriptionTable = subscriptionTable;
+        this.gatewayUri = new URI(gatewayUri);
 
         manager = builderManager();
+        gatewayApi = buildGatewayApi();
+        admin = buildAdmin();
 
-        gatewayApi = ApiGatewayManagementApiAsyncClient
+        sentMessageTimeout = Long.parseLong(System.getenv(Constants.ENV_SENT_MESSAGE_TIMEOUT));
+
+        Core.getGlobalContext().register(this);
+    }
+
+    private ApiGatewayManagementApiAsyncClient buildGatewayApi() {
+        return ApiGatewayManagementApiAsyncClient
                 .builder()
-                .endpointOverride(new URI(gatewayUri))
+                .endpointOverride(gatewayUri)
                 .build();
+    }
 
-        admin = new Admin.AdminBuilder<U>()
+    private Admin<U> buildAdmin() {
+        return new Admin.AdminBuilder<U>()
                 .withGraph(graph)
                 .withSubscriptionTable(subscriptionTable)
                 .withManager(manager)
                 .withLastSeenTimeout(Long.parseLong(System.getenv(Constants.ENV_LAST_SEEN_TIMEOUT)))
                 .build();
+    }
 
-        sentMessageTimeout = Long.parseLong(System.getenv(Constants.ENV_SENT_MESSAGE_TIMEOUT));
+    /**
+     * primes before a SnapStart snapshot is taken so restored lambdas start warm
+     */
+    @Override
+    public void beforeCheckpoint(final Context<? extends Resource> context) throws Exception {
+        prime();
+    }
+
+    /**
+     * connections made before the snapshot are not usable after restore, so the gateway client, database manager and
+     * the admin using it are rebuilt and cached lookups are dropped
+     */
+    @Override
+    public void afterRestore(final Context<? extends Resource> context) throws Exception {
+        final var oldGatewayApi = gatewayApi;
+        manager = builderManager();
+        admin = buildAdmin();
+        gatewayApi = buildGatewayApi();
+        oldGatewayApi.close();
+        LambdaCache.reset();
     }
 
     protected Admin<U> getAdmin() {
@@ -73,6 +111,14 @@ public abstract class LambdaAdminSource<U extends User, E> implements RequestHan
                 });
     }
 
+    /**
+     * renders the keep alive ping so the first ping after a restore does not pay for building its serializer,
+     * override to prime anything else calling super
+     */
+    protected void prime() {
+        getPingMessage();
+    }
+
     private String getPingMessage() {
         try {
             return manager.getMapper().writeValueAsString(new SubscriptionResponseKeepAlive());
@@ -2,65 +2,708 @@ package com.fleetpin.graphql.aws.lambda;
 
 import java.lang.ref.WeakReference;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToIntBiFunction;
 
+/**
+ * Caches values for a fixed time after they are written. Unbounded unless a maximum size or weight is set, in which
+ * case entries are kept in a segmented LRU: new entries start on probation and move to the protected segment when
+ * they are read again, so a burst of keys seen once can not push out the entries that are used repeatedly.
+ * Limits are set straight after construction, before the cache is used.
+ * <p>
+ * As every entry lives for the same time, entries are also kept in write order which is their expiry order.
+ * {@link #evict()} only looks at the oldest entries and stops at the first one still live, and reads check the
+ * expiry of the entry they find, so an expired value is never returned even if it has not been evicted yet.
+ * <p>
+ * Values that are {@link CompletionStage}s are judged once they complete: failed futures can live for a shorter time
+ * or be dropped straight away, and negative results can have their own time to live. With refresh after write, an
+ * entry read after the refresh time is reloaded in the background while the current value keeps being served.
+ * <p>
+ * Each cache counts its hits, misses, loads and evictions, {@link #stats()} snapshots every cache by name.
+ */
 public class LambdaCache<K, V> {
 
 	private final static ConcurrentLinkedQueue<WeakReference<LambdaCache<?, ?>>> entries = new ConcurrentLinkedQueue<>();
 
-	private final Duration writeTTL;
-	private final Map<K, CacheWrapper<V>> map;
+	/**
+	 * share of the limits held by entries read more than once
+	 */
+	private static final double PROTECTED_SHARE = 0.8;
+
+	/**
+	 * most expired entries each cache drops per {@link #evict()}, the rest are dropped by later calls or when read
+	 */
+	private static final int EVICTION_BATCH = 1_000;
+
+	private final long writeTTL;
+	private final Map<K, Node<K, V>> map;
 	private final Function<K, V> producuer;
 
+	private final Object lock = new Object();
+	private final Node<K, V> expiry = Node.sentinel();
+	private final Node<K, V> negativeExpiry = Node.sentinel();
+	private final Node<K, V> failureExpiry = Node.sentinel();
+	private final Node<K, V> probation = Node.sentinel();
+	private final Node<K, V> protectedSegment = Node.sentinel();
+	private boolean bounded;
+	private long maximumSize = Long.MAX_VALUE;
+	private long maximumWeight = Long.MAX_VALUE;
+	private ToIntBiFunction<? super K, ? super V> weigher = (key, value) -> 1;
+	private long size;
+	private long weight;
+	private long protectedSize;
+	private long protectedWeight;
+	private long refreshAfterWrite = -1;
+	private Executor refreshExecutor;
+	private long negativeTTL = -1;
+	private Predicate<? super V> negative;
+	private long failureTTL = -1;
+	private String name = "unnamed";
+	private Function<Set<K>, Map<K, V>> batchLoader;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder loadNanos = new LongAdder();
+	private final LongAdder expiredEvictions = new LongAdder();
+	private final LongAdder sizeEvictions = new LongAdder();
+	private final LongAdder failureEvictions = new LongAdder();
+
 	public LambdaCache(Duration writeTTL, Function<K, V> builder) {
-		this.writeTTL = writeTTL;
+		this.writeTTL = writeTTL.toNanos();
 		this.producuer = builder;
 		this.map = new ConcurrentHashMap<>();
 		entries.add(new WeakReference<>(this));
 	}
-	
-	private CacheWrapper<V> build(K key) {
-		V value = producuer.apply(key);
-		return new CacheWrapper<V>(Instant.now(), value);
+
+	/**
+	 * @param name what the cache is reported as in {@link #stats()}, caches sharing a name are added together
+	 * @return this
+	 */
+	public LambdaCache<K, V> name(String name) {
+		this.name = name;
+		return this;
+	}
+
+	/**
+	 * @param maximumSize most entries kept, least recently used entries are dropped past it
+	 * @return this
+	 */
+	public LambdaCache<K, V> maximumSize(long maximumSize) {
+		if(maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+		this.bounded = true;
+		return this;
+	}
+
+	/**
+	 * @param maximumWeight most total weight kept, least recently used entries are dropped past it
+	 * @param weigher weight of an entry, worked out once when it is added
+	 * @return this
+	 */
+	public LambdaCache<K, V> maximumWeight(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+		if(maximumWeight <= 0) {
+			throw new IllegalArgumentException("maximumWeight must be positive " + maximumWeight);
+		}
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+		this.bounded = true;
+		return this;
+	}
+
+	/**
+	 * @param refreshAfterWrite age at which a read reloads the entry in the background, the current value is served
+	 * until the reload completes and kept if it fails
+	 * @return this
+	 */
+	public LambdaCache<K, V> refreshAfterWrite(Duration refreshAfterWrite) {
+		return refreshAfterWrite(refreshAfterWrite, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param refreshAfterWrite age at which a read reloads the entry in the background
+	 * @param executor runs the reloads
+	 * @return this
+	 */
+	public LambdaCache<K, V> refreshAfterWrite(Duration refreshAfterWrite, Executor executor) {
+		this.refreshAfterWrite = refreshAfterWrite.toNanos();
+		this.refreshExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * @param negativeTTL time to live of negative results, counted from when the value completes
+	 * @param negative if a value is a negative result, futures are only tested once they complete successfully
+	 * @return this
+	 */
+	public LambdaCache<K, V> negativeTTL(Duration negativeTTL, Predicate<? super V> negative) {
+		this.negativeTTL = negativeTTL.toNanos();
+		this.negative = negative;
+		return this;
+	}
+
+	/**
+	 * @param failureTTL time to live of futures that complete exceptionally, counted from when they fail.
+	 * {@link Duration#ZERO} drops them as soon as they fail so the next read tries again
+	 * @return this
+	 */
+	public LambdaCache<K, V> failureTTL(Duration failureTTL) {
+		this.failureTTL = failureTTL.toNanos();
+		return this;
+	}
+
+	/**
+	 * @param batchLoader loads the keys {@link #getAll(Collection)} is missing in one go, keys left out of the result
+	 * are loaded one at a time
+	 * @return this
+	 */
+	public LambdaCache<K, V> batchLoader(Function<Set<K>, Map<K, V>> batchLoader) {
+		this.batchLoader = batchLoader;
+		return this;
 	}
-	
+
 	public V get(K key) {
-		return map.computeIfAbsent(key, this::build).value;
+		return lookup(key, producuer);
+	}
+
+	/**
+	 * @param keys to look up
+	 * @return the value of each key, the keys missing from the cache are loaded with a single call to the
+	 * {@link #batchLoader(Function)} when one is set
+	 */
+	public Map<K, V> getAll(Collection<K> keys) {
+		var result = new HashMap<K, V>();
+		var missing = new LinkedHashSet<K>();
+		for(var key : keys) {
+			if(result.containsKey(key)) {
+				continue;
+			}
+			var node = live(key, producuer);
+			if(node == null) {
+				missing.add(key);
+			}else {
+				result.put(key, touch(node));
+			}
+		}
+		if(missing.isEmpty()) {
+			return result;
+		}
+		if(batchLoader == null) {
+			for(var key : missing) {
+				result.put(key, lookup(key, producuer));
+			}
+			return result;
+		}
+		long start = System.nanoTime();
+		Map<K, V> loaded;
+		try {
+			loaded = batchLoader.apply(missing);
+		}catch (RuntimeException | Error e) {
+			recordLoad(start, false);
+			throw e;
+		}
+		var now = System.nanoTime();
+		for(var key : missing) {
+			var value = loaded.get(key);
+			if(value == null) {
+				result.put(key, lookup(key, producuer));
+				continue;
+			}
+			recordLoad(start, value);
+			var node = new Node<>(key, value, now, now + writeTTL);
+			var existing = map.putIfAbsent(key, node);
+			// a racing read got there first, use its value so every caller sees the same one
+			if(existing == null) {
+				misses.increment();
+			}else {
+				hits.increment();
+				node = existing;
+			}
+			result.put(key, touch(node));
+		}
+		return result;
 	}
+
 	public V get(K key, Supplier<V> consumer) {
-		return map.computeIfAbsent(key, __ -> new CacheWrapper<V>(Instant.now(), consumer.get())).value;
-	}	
-	
+		return lookup(key, __ -> consumer.get());
+	}
+
+	private V lookup(K key, Function<K, V> loader) {
+		var node = live(key, loader);
+		if(node == null) {
+			var loaded = new boolean[1];
+			node = map.computeIfAbsent(key, k -> {
+				loaded[0] = true;
+				return load(k, loader);
+			});
+			// another read may have loaded it first
+			(loaded[0] ? misses : hits).increment();
+		}
+		return touch(node);
+	}
+
+	/**
+	 * @return the entry if it is cached and not expired, counted as a hit
+	 */
+	private Node<K, V> live(K key, Function<K, V> loader) {
+		var node = map.get(key);
+		if(node == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		if(node.isExpired(now)) {
+			if(discard(node)) {
+				expiredEvictions.increment();
+			}
+			return null;
+		}
+		hits.increment();
+		if(refreshAfterWrite >= 0 && now - node.loadedAt >= refreshAfterWrite) {
+			refresh(node, loader);
+		}
+		return node;
+	}
+
+	private V touch(Node<K, V> node) {
+		// unbounded caches only need the lock to link new entries
+		if(bounded || node.state == Node.NEW) {
+			access(node);
+		}
+		return node.value;
+	}
+
+	private Node<K, V> load(K key, Function<K, V> loader) {
+		long start = System.nanoTime();
+		V value;
+		try {
+			value = loader.apply(key);
+		}catch (RuntimeException | Error e) {
+			recordLoad(start, false);
+			throw e;
+		}
+		recordLoad(start, value);
+		var now = System.nanoTime();
+		return new Node<>(key, value, now, now + writeTTL);
+	}
+
+	private void recordLoad(long start, V value) {
+		if(value instanceof CompletionStage) {
+			((CompletionStage<?>) value).whenComplete((result, error) -> recordLoad(start, error == null));
+		}else {
+			recordLoad(start, true);
+		}
+	}
+
+	private void recordLoad(long start, boolean success) {
+		loadNanos.add(System.nanoTime() - start);
+		(success ? loads : loadFailures).increment();
+	}
+
+	private void refresh(Node<K, V> node, Function<K, V> loader) {
+		synchronized (lock) {
+			if(node.refreshing || node.state == Node.REMOVED || !isSettled(node.value)) {
+				return;
+			}
+			node.refreshing = true;
+		}
+		CompletableFuture.supplyAsync(() -> load(node.key, loader), refreshExecutor).thenCompose(fresh -> {
+			if(fresh.value instanceof CompletionStage) {
+				return ((CompletionStage<?>) fresh.value).thenApply(__ -> fresh);
+			}
+			return CompletableFuture.completedFuture(fresh);
+		}).whenComplete((fresh, error) -> {
+			if(error == null && map.replace(node.key, node, fresh)) {
+				synchronized (lock) {
+					remove(node);
+				}
+				access(fresh);
+			}else {
+				// keep serving the current value, a later read tries again
+				synchronized (lock) {
+					node.refreshing = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return false for futures still running or that failed, they are not worth refreshing
+	 */
+	private static boolean isSettled(Object value) {
+		if(value instanceof CompletableFuture) {
+			var future = (CompletableFuture<?>) value;
+			return future.isDone() && !future.isCompletedExceptionally();
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of entries held, including expired entries not evicted yet
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * the map is only changed once the lock is released, loaders run inside the map's computeIfAbsent and take the lock
+	 * to link their entry so holding both the other way round could deadlock
+	 */
+	private void access(Node<K, V> node) {
+		List<Node<K, V>> victims = null;
+		boolean linked = false;
+		synchronized (lock) {
+			switch (node.state) {
+			case Node.NEW:
+				linkExpiry(expiry, node);
+				if(bounded) {
+					node.weight = weigher.applyAsInt(node.key, node.value);
+					node.state = Node.PROBATION;
+					link(probation, node);
+					size++;
+					weight += node.weight;
+					victims = evictOverflow();
+				}else {
+					node.state = Node.LIVE;
+				}
+				linked = true;
+				break;
+			case Node.PROBATION:
+				unlink(node);
+				node.state = Node.PROTECTED;
+				link(protectedSegment, node);
+				protectedSize++;
+				protectedWeight += node.weight;
+				demoteOverflow();
+				break;
+			case Node.PROTECTED:
+				unlink(node);
+				link(protectedSegment, node);
+				break;
+			default:
+				// evicted while being read
+			}
+		}
+		if(victims != null) {
+			for(var victim : victims) {
+				map.remove(victim.key, victim);
+			}
+		}
+		// once linked, futures that already completed are handled straight away
+		if(linked && (negative != null || failureTTL >= 0)) {
+			watch(node);
+		}
+	}
+
+	/**
+	 * moves the entry to the negative or failure expiry once its value is known
+	 */
+	private void watch(Node<K, V> node) {
+		if(!(node.value instanceof CompletionStage)) {
+			if(negative != null && negative.test(node.value)) {
+				synchronized (lock) {
+					retime(node, negativeExpiry, negativeTTL);
+				}
+			}
+			return;
+		}
+		((CompletionStage<?>) node.value).whenComplete((result, error) -> {
+			if(error != null) {
+				if(failureTTL == 0) {
+					if(discard(node)) {
+						failureEvictions.increment();
+					}
+				}else if(failureTTL > 0) {
+					synchronized (lock) {
+						retime(node, failureExpiry, failureTTL);
+					}
+				}
+			}else if(negative != null && negative.test(node.value)) {
+				synchronized (lock) {
+					retime(node, negativeExpiry, negativeTTL);
+				}
+			}
+		});
+	}
+
+	/**
+	 * each expiry list has a single time to live and entries join at the tail when they are retimed, so each stays in
+	 * expiry order
+	 */
+	private void retime(Node<K, V> node, Node<K, V> list, long ttl) {
+		if(node.state == Node.REMOVED || node.expiryNext == null) {
+			return;
+		}
+		unlinkExpiry(node);
+		node.expiresAt = System.nanoTime() + ttl;
+		linkExpiry(list, node);
+	}
+
+	/**
+	 * @return the entries taken out of the eviction order, for the caller to remove from the map once the lock is released
+	 */
+	private List<Node<K, V>> evictOverflow() {
+		List<Node<K, V>> victims = null;
+		while(size > maximumSize || weight > maximumWeight) {
+			var victim = probation.prev != probation ? probation.prev : protectedSegment.prev;
+			if(victim == protectedSegment) {
+				break;
+			}
+			remove(victim);
+			if(victims == null) {
+				victims = new ArrayList<>();
+			}
+			victims.add(victim);
+			sizeEvictions.increment();
+		}
+		return victims;
+	}
+
+	private void demoteOverflow() {
+		while(protectedSize > maximumSize * PROTECTED_SHARE || protectedWeight > maximumWeight * PROTECTED_SHARE) {
+			var demoted = protectedSegment.prev;
+			if(demoted == protectedSegment) {
+				return;
+			}
+			unlink(demoted);
+			protectedSize--;
+			protectedWeight -= demoted.weight;
+			demoted.state = Node.PROBATION;
+			link(probation, demoted);
+		}
+	}
+
+	/**
+	 * @return if the node was still in the map
+	 */
+	private boolean discard(Node<K, V> node) {
+		var removed = map.remove(node.key, node);
+		synchronized (lock) {
+			remove(node);
+		}
+		return removed;
+	}
+
+	/**
+	 * takes the node out of the expiry and eviction order, the caller removes it from the map
+	 */
+	private void remove(Node<K, V> node) {
+		switch (node.state) {
+		case Node.PROBATION:
+			unlink(node);
+			break;
+		case Node.PROTECTED:
+			unlink(node);
+			protectedSize--;
+			protectedWeight -= node.weight;
+			break;
+		case Node.LIVE:
+			break;
+		default:
+			// not linked yet or already removed
+			node.state = Node.REMOVED;
+			return;
+		}
+		unlinkExpiry(node);
+		if(bounded) {
+			size--;
+			weight -= node.weight;
+		}
+		node.state = Node.REMOVED;
+	}
+
+	private static <K, V> void link(Node<K, V> head, Node<K, V> node) {
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+	}
+
+	private static <K, V> void unlink(Node<K, V> node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+	}
+
+	/**
+	 * newest entries at the tail, so the head is always the next to expire
+	 */
+	private static <K, V> void linkExpiry(Node<K, V> list, Node<K, V> node) {
+		node.expiryNext = list;
+		node.expiryPrev = list.expiryPrev;
+		list.expiryPrev.expiryNext = node;
+		list.expiryPrev = node;
+	}
+
+	private static <K, V> void unlinkExpiry(Node<K, V> node) {
+		node.expiryPrev.expiryNext = node.expiryNext;
+		node.expiryNext.expiryPrev = node.expiryPrev;
+		node.expiryPrev = null;
+		node.expiryNext = null;
+	}
+
+	private void clear() {
+		var removed = new ArrayList<Node<K, V>>();
+		synchronized (lock) {
+			for(var node : map.values()) {
+				node.state = Node.REMOVED;
+				removed.add(node);
+			}
+			expiry.expiryNext = expiry.expiryPrev = expiry;
+			negativeExpiry.expiryNext = negativeExpiry.expiryPrev = negativeExpiry;
+			failureExpiry.expiryNext = failureExpiry.expiryPrev = failureExpiry;
+			probation.next = probation.prev = probation;
+			protectedSegment.next = protectedSegment.prev = protectedSegment;
+			size = weight = protectedSize = protectedWeight = 0;
+		}
+		for(var node : removed) {
+			map.remove(node.key, node);
+		}
+	}
+
+	/**
+	 * drops expired entries of every cache, only the entries that expired are visited
+	 */
 	public static void evict() {
-		var now = Instant.now();
+		var now = System.nanoTime();
 		var it = entries.iterator();
 		while(it.hasNext()) {
 			var v = it.next().get();
 			if(v == null) {
 				it.remove();
 			}else {
-				var vIt = v.map.values().iterator();
-				while(vIt.hasNext()) {
-					var value = vIt.next();
-					if(value.added.plus(v.writeTTL).isBefore(now)) {
-						vIt.remove();
-					}
-				}
+				v.evictExpired(now);
+			}
+		}
+	}
+
+	private void evictExpired(long now) {
+		var expired = new ArrayList<Node<K, V>>();
+		synchronized (lock) {
+			evictExpired(expiry, now, expired);
+			evictExpired(negativeExpiry, now, expired);
+			evictExpired(failureExpiry, now, expired);
+		}
+		for(var node : expired) {
+			map.remove(node.key, node);
+		}
+	}
+
+	/**
+	 * takes expired entries out of the order until the batch is full, the caller removes them from the map
+	 */
+	private void evictExpired(Node<K, V> list, long now, List<Node<K, V>> expired) {
+		while(expired.size() < EVICTION_BATCH) {
+			var oldest = list.expiryNext;
+			if(oldest == list || !oldest.isExpired(now)) {
+				break;
+			}
+			remove(oldest);
+			expired.add(oldest);
+			expiredEvictions.increment();
+		}
+	}
+
+	/**
+	 * drops every entry of every cache. After a snapshot restore the write times are from before the snapshot and
+	 * cached futures may belong to clients that no longer have a connection
+	 */
+	public static void reset() {
+		var it = entries.iterator();
+		while(it.hasNext()) {
+			var v = it.next().get();
+			if(v == null) {
+				it.remove();
+			}else {
+				v.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return counters of this cache since it was created
+	 */
+	public CacheStats getStats() {
+		return new CacheStats(name, hits.sum(), misses.sum(), loads.sum(), loadFailures.sum(), loadNanos.sum(), expiredEvictions.sum(), sizeEvictions.sum(), failureEvictions.sum(),
+				map.size());
+	}
+
+	/**
+	 * @return counters of every live cache, caches sharing a name are added together
+	 */
+	public static List<CacheStats> stats() {
+		var byName = new LinkedHashMap<String, CacheStats>();
+		var it = entries.iterator();
+		while(it.hasNext()) {
+			var v = it.next().get();
+			if(v == null) {
+				it.remove();
+			}else {
+				byName.merge(v.name, v.getStats(), CacheStats::plus);
 			}
 		}
+		return new ArrayList<>(byName.values());
 	}
 
-	private static class CacheWrapper<V> {
-		private final Instant added;
+	private static class Node<K, V> {
+		private static final byte NEW = 0;
+		private static final byte LIVE = 1;
+		private static final byte PROBATION = 2;
+		private static final byte PROTECTED = 3;
+		private static final byte REMOVED = 4;
+
+		private final K key;
 		private final V value;
-		public CacheWrapper(Instant added, V value) {
-			this.added = added;
+		private final long loadedAt;
+		// written under the cache lock, read without it on lookups
+		private volatile long expiresAt;
+		private volatile byte state;
+		// guarded by the cache lock
+		private int weight;
+		private boolean refreshing;
+		private Node<K, V> prev;
+		private Node<K, V> next;
+		private Node<K, V> expiryPrev;
+		private Node<K, V> expiryNext;
+
+		public Node(K key, V value, long loadedAt, long expiresAt) {
+			this.key = key;
 			this.value = value;
+			this.loadedAt = loadedAt;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+
+		private static <K, V> Node<K, V> sentinel() {
+			var head = new Node<K, V>(null, null, 0, 0);
+			head.prev = head;
+			head.next = head;
+			head.expiryPrev = head;
+			head.expiryNext = head;
+			return head;
 		}
 	}
 
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.annotations.VisibleForTesting;
+
+import graphql.GraphQL;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Same as {@link LambdaGraphQL} but reads the API gateway proxy event straight off the input stream, only keeping
+ * the headers and body, and writes the proxy response straight to the output stream.
+ */
+public abstract class LambdaGraphQLStream<U, C extends ContextGraphQL> extends AbstractLambdaGraphQL<U, C> implements RequestStreamHandler {
+
+    public LambdaGraphQLStream() throws Exception {
+        super();
+    }
+
+    @VisibleForTesting
+    protected LambdaGraphQLStream(final GraphQL graphQL) {
+        super(graphQL);
+    }
+
+    @Override
+    public void handleRequest(final InputStream input, final OutputStream output, final Context context) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, String> parameters = new HashMap<>();
+        String method = null;
+        String body = null;
+        boolean base64Encoded = false;
+        boolean gatewayRequest = false;
+
+        try (JsonParser parser = getMapper().getFactory().createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected API gateway proxy event");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var field = parser.getCurrentName();
+                final var token = parser.nextToken();
+                switch (field) {
+                    case "headers":
+                        if (token == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                final var name = parser.getCurrentName();
+                                parser.nextToken();
+                                headers.put(name, parser.getValueAsString());
+                            }
+                        }
+                        break;
+                    case "queryStringParameters":
+                        if (token == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                final var name = parser.getCurrentName();
+                                parser.nextToken();
+                                parameters.put(name, parser.getValueAsString());
+                            }
+                        }
+                        break;
+                    case "httpMethod":
+                        method = parser.getValueAsString();
+                        break;
+                    case "body":
+                        body = parser.getValueAsString();
+                        break;
+                    case "isBase64Encoded":
+                        base64Encoded = parser.getValueAsBoolean();
+                        break;
+                    case "requestContext":
+                        gatewayRequest = true;
+                        parser.skipChildren();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+
+        if (!gatewayRequest && method == null && body == null) {
+            // scheduled keep warm ping
+            write(keepWarm(), output);
+            return;
+        }
+
+        if (base64Encoded && body != null) {
+            body = new String(Base64.getDecoder().decode(body), StandardCharsets.UTF_8);
+        }
+
+        write(handle(method, body, parameters, headers, deadline(context)), output);
+    }
+
+    private void write(final GraphQLResponse response, final OutputStream output) throws IOException {
+        try (JsonGenerator generator = getMapper().getFactory().createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeNumberField("statusCode", response.getStatusCode());
+            generator.writeObjectFieldStart("headers");
+            for (var header : response.getHeaders().entrySet()) {
+                generator.writeStringField(header.getKey(), header.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeFieldName("body");
+            if (response.isBase64Encoded()) {
+                // base64 never needs escaping
+                generator.writeRawUTF8String(response.getBody(), 0, response.getBodyLength());
+            } else {
+                generator.writeUTF8String(response.getBody(), 0, response.getBodyLength());
+            }
+            generator.writeBooleanField("isBase64Encoded", response.isBase64Encoded());
+            generator.writeEndObject();
+        }
+    }
+}
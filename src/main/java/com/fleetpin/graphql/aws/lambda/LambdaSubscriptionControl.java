@@ -11,7 +11,6 @@
  */
 package com.fleetpin.graphql.aws.lambda;
 
-import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2ProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2ProxyResponseEvent;
@@ -23,6 +22,9 @@ import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
 import com.google.common.annotations.VisibleForTesting;
 import graphql.GraphQL;
 import graphql.GraphQL.Builder;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiClient;
 
@@ -30,15 +32,20 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
-public abstract class LambdaSubscriptionControl<U extends User> implements RequestHandler<APIGatewayV2ProxyRequestEvent, APIGatewayV2ProxyResponseEvent>{
+public abstract class LambdaSubscriptionControl<U extends User> implements RequestHandler<APIGatewayV2ProxyRequestEvent, APIGatewayV2ProxyResponseEvent>, Resource {
 
-	private final ApiGatewayManagementApiClient gatewayApi;
-	private final DynamoDbManager manager;
-	private final Admin<U> admin;
+	private volatile ApiGatewayManagementApiClient gatewayApi;
+	private volatile DynamoDbManager manager;
+	private volatile Admin<U> admin;
+	private final GraphQL graph;
+	private final URI gatewayUri;
+	private final String subscriptionTable;
+	private final Map<String, String> subscriptionNameMapping;
 
 	public LambdaSubscriptionControl(
 			final String subscriptionTable,
@@ -54,16 +61,26 @@ public abstract class LambdaSubscriptionControl<U extends User> implements Reque
 	) throws Exception {
 		prepare();
 		this.manager = builderManager();
-		final GraphQL graph = buildGraphQL().subscriptionExecutionStrategy(new InterceptExecutionStrategy()).build();
+		this.graph = buildGraphQL().subscriptionExecutionStrategy(new InterceptExecutionStrategy()).build();
+		this.subscriptionTable = subscriptionTable;
+		this.subscriptionNameMapping = subscriptionNameMapping;
+		this.gatewayUri = gatewayUri == null ? null : new URI(gatewayUri);
+		this.gatewayApi = buildGatewayApi();
+		this.admin = buildAdmin();
+
+		prime();
+		Core.getGlobalContext().register(this);
+	}
 
+	private ApiGatewayManagementApiClient buildGatewayApi() {
 		if (gatewayUri == null) {
-			gatewayApi = null;
-		} else {
-			URI endpoint = new URI(gatewayUri);
-			this.gatewayApi = ApiGatewayManagementApiClient.builder().endpointOverride(endpoint).build();
+			return null;
 		}
+		return ApiGatewayManagementApiClient.builder().endpointOverride(gatewayUri).build();
+	}
 
-		this.admin = new Admin.AdminBuilder<U>()
+	private Admin<U> buildAdmin() {
+		return new Admin.AdminBuilder<U>()
 				.withGraph(graph)
 				.withSubscriptionTable(subscriptionTable)
 				.withManager(manager)
@@ -75,11 +92,40 @@ public abstract class LambdaSubscriptionControl<U extends User> implements Reque
 						)
 				)
 				.build();
+	}
+
+	/**
+	 * primes before a SnapStart snapshot is taken so restored lambdas start warm
+	 */
+	@Override
+	public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+		prime();
+	}
 
+	/**
+	 * connections made before the snapshot are not usable after restore, so the gateway client, database manager and
+	 * the admin using it are rebuilt and cached lookups are dropped
+	 */
+	@Override
+	public void afterRestore(Context<? extends Resource> context) throws Exception {
+		var oldGatewayApi = gatewayApi;
+		this.manager = builderManager();
+		this.admin = buildAdmin();
+		this.gatewayApi = buildGatewayApi();
+		if (oldGatewayApi != null) {
+			oldGatewayApi.close();
+		}
+		LambdaCache.reset();
 	}
 
 	@Override
-	public APIGatewayV2ProxyResponseEvent handleRequest(APIGatewayV2ProxyRequestEvent input, Context context) {
+	public APIGatewayV2ProxyResponseEvent handleRequest(APIGatewayV2ProxyRequestEvent input, com.amazonaws.services.lambda.runtime.Context context) {
+		if (Warmup.isKeepWarm(input)) {
+			prime();
+			var toReturn = new APIGatewayV2ProxyResponseEvent();
+			toReturn.setStatusCode(200);
+			return toReturn;
+		}
 		try {
 			switch(input.getRequestContext().getEventType()) {
 			case "CONNECT" :
@@ -144,6 +190,26 @@ public abstract class LambdaSubscriptionControl<U extends User> implements Reque
 		gatewayApi.postToConnection(b -> b.connectionId(connectionId).data(SdkBytes.fromString(message, StandardCharsets.UTF_8)));
 	}
 	
+	/**
+	 * subscription queries run when the lambda starts and on keep warm pings, only the subscription name is resolved.
+	 * Called from the constructor before subclass fields are set
+	 * @return empty to skip priming
+	 */
+	protected List<GraphQLQuery> warmupQueries() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * runs the {@link #warmupQueries()}, override to prime anything else calling super to keep the queries
+	 */
+	protected void prime() {
+		try {
+			Warmup.run(graph, warmupQueries(), query -> Warmup.NOOP_CONTEXT);
+		} finally {
+			LambdaCache.evict();
+		}
+	}
+
 	protected abstract void prepare() throws Exception;
 	protected abstract Builder buildGraphQL() throws Exception;
 	protected abstract DynamoDbManager builderManager();
@@ -151,4 +217,4 @@ public abstract class LambdaSubscriptionControl<U extends User> implements Reque
 	public abstract CompletableFuture<U> validateUser(String authHeader);
 	public abstract String buildSubscriptionId(String subscription, Map<String, Object> variables);
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -13,12 +13,18 @@ package com.fleetpin.graphql.aws.lambda;
 
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fleetpin.graphql.aws.lambda.metrics.EmfMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.LambdaMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.RequestMetrics;
 import com.fleetpin.graphql.aws.lambda.subscription.SubscriptionResponseData;
 import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
 import com.google.common.annotations.VisibleForTesting;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
 import io.reactivex.rxjava3.core.Flowable;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,7 +32,9 @@ import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.apigatewaymanagementapi.ApiGatewayManagementApiAsyncClient;
 import software.amazon.awssdk.services.apigatewaymanagementapi.model.PostToConnectionResponse;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
 
 import java.io.UncheckedIOException;
@@ -36,13 +44,51 @@ import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
-public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E, Void> {
+public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E, Void>, Resource {
 
     private static final Logger logger = LoggerFactory.getLogger(LambdaSubscriptionSource.class);
 
-    private final DynamoDbManager manager;
-    private final ApiGatewayManagementApiAsyncClient gatewayApi;
+    /**
+     * most keys DynamoDB accepts in one BatchGetItem
+     */
+    private static final int BATCH_GET_LIMIT = 100;
+    private static final int BATCH_GET_ATTEMPTS = 5;
+    private static final long BATCH_GET_BACKOFF_MILLIS = 25;
+
+    /**
+     * subscriptions are kept as the list of items the index query returned
+     */
+    private static final DynamoCacheTier.Codec<QueryResponse> QUERY_CODEC = new DynamoCacheTier.Codec<>() {
+        @Override
+        public int version() {
+            return 1;
+        }
+
+        @Override
+        public AttributeValue encode(QueryResponse value) {
+            final List<AttributeValue> items = new ArrayList<>(value.items().size());
+            for (var item : value.items()) {
+                items.add(AttributeValue.builder().m(item).build());
+            }
+            return AttributeValue.builder().l(items).build();
+        }
+
+        @Override
+        public QueryResponse decode(AttributeValue value) {
+            final List<Map<String, AttributeValue>> items = new ArrayList<>(value.l().size());
+            for (var item : value.l()) {
+                items.add(item.m());
+            }
+            return QueryResponse.builder().items(items).count(items.size()).build();
+        }
+    };
+
+    private volatile DynamoDbManager manager;
+    private volatile ApiGatewayManagementApiAsyncClient gatewayApi;
+    private final URI gatewayUri;
     private final GraphQL graph;
 
 
@@ -51,6 +97,7 @@ public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E
     private final String subscriptionTable;
 
     private final long sentMessageTimeout;
+    private final LambdaMetrics metrics;
 
     public LambdaSubscriptionSource(String subscriptionId, String subscriptionTable, String apiUri, Duration userCacheTTL, Duration subscriptionCacheTTL) throws Exception {
         prepare();
@@ -58,16 +105,13 @@ public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E
         this.subscriptionTable = subscriptionTable;
         this.manager = builderManager();
         this.graph = buildGraphQL();
+        this.metrics = buildMetrics();
 
-        if (apiUri == null) {
-            gatewayApi = null;
-        } else {
-            final var endpoint = new URI(apiUri);
-            this.gatewayApi = ApiGatewayManagementApiAsyncClient.builder().endpointOverride(endpoint).build();
-        }
+        this.gatewayUri = apiUri == null ? null : new URI(apiUri);
+        this.gatewayApi = buildGatewayApi();
 
         //TODO: make configurable
-        organisationCache = new LambdaCache<>(subscriptionCacheTTL, lookupId -> {
+        Function<String, CompletableFuture<QueryResponse>> subscriptionLoader = lookupId -> {
             final Map<String, AttributeValue> keyConditions = new HashMap<>();
 
             keyConditions.put(":subscription", AttributeValue.builder().s(subscriptionId + ":" + lookupId).build());
@@ -80,22 +124,226 @@ public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E
                             .keyConditionExpression("subscription = :subscription")
                             .expressionAttributeValues(keyConditions)
                     );
-        });
-
-        userCache = new LambdaCache<>(userCacheTTL, connectionId -> {
-            final Map<String, AttributeValue> key = new HashMap<>();
-
-            key.put("connectionId", AttributeValue.builder().s(connectionId).build());
-            key.put("id", AttributeValue.builder().s("auth").build());
-
-            return manager.getDynamoDbAsyncClient().getItem(t -> t.tableName(subscriptionTable).key(key));
-        });
+        };
+        final var subscriptionRefresh = subscriptionCacheTTL.dividedBy(2);
+        final var cacheTable = cacheTable();
+        if (cacheTable != null) {
+            // shared no longer than the refresh time so refreshes reach the index rather than reading back the same item
+            subscriptionLoader = new DynamoCacheTier<>(() -> manager, cacheTable, subscriptionId, subscriptionRefresh, QUERY_CODEC).loader(subscriptionLoader);
+        }
+        organisationCache = new LambdaCache<String, CompletableFuture<QueryResponse>>(subscriptionCacheTTL, subscriptionLoader).name("subscriptions")
+                .maximumSize(cacheMaximumSize())
+                .refreshAfterWrite(subscriptionRefresh)
+                .failureTTL(Duration.ZERO);
+
+        userCache = new LambdaCache<String, CompletableFuture<GetItemResponse>>(userCacheTTL,
+                connectionId -> manager.getDynamoDbAsyncClient().getItem(t -> t.tableName(subscriptionTable).key(authKey(connectionId)))
+        ).name("connections")
+                .batchLoader(this::loadConnections)
+                .maximumSize(cacheMaximumSize())
+                .refreshAfterWrite(userCacheTTL.dividedBy(2))
+                .failureTTL(Duration.ZERO);
 
         sentMessageTimeout = Long.parseLong(
                 System.getenv(Constants.ENV_SENT_MESSAGE_TIMEOUT) != null ?
                         System.getenv(Constants.ENV_SENT_MESSAGE_TIMEOUT) :
                         Duration.ofMinutes(2).toMillis() + ""
         );
+
+        prime();
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * called from the constructor, so subclass fields are not set yet
+     * @return most subscription lookups and most connections kept by each cache, rarely used entries are dropped first
+     */
+    protected long cacheMaximumSize() {
+        return 10_000;
+    }
+
+    /**
+     * failures and the counters of the subscription and connection caches, published once each event is processed.
+     * Called from the constructor, so subclass fields are not set yet
+     * @return null to turn metrics off, or {@link EmfMetrics} to publish through the function log
+     */
+    protected LambdaMetrics buildMetrics() {
+        return null;
+    }
+
+    /**
+     * called from the constructor, so subclass fields are not set yet
+     * @return table shared by all containers to look subscriptions up in before querying the subscription index,
+     * see {@link DynamoCacheTier}. Null to only cache in memory
+     */
+    protected String cacheTable() {
+        return null;
+    }
+
+    private static Map<String, AttributeValue> authKey(String connectionId) {
+        final Map<String, AttributeValue> key = new HashMap<>();
+
+        key.put("connectionId", AttributeValue.builder().s(connectionId).build());
+        key.put("id", AttributeValue.builder().s("auth").build());
+
+        return key;
+    }
+
+    /**
+     * loads the auth rows of many connections with BatchGetItem, chunks of up to 100 keys are requested in parallel
+     * @param connectionIds connections missing from the cache
+     * @return a future per connection, connections without an auth row get a response without an item
+     */
+    private Map<String, CompletableFuture<GetItemResponse>> loadConnections(Set<String> connectionIds) {
+        final Map<String, CompletableFuture<GetItemResponse>> futures = new HashMap<>();
+        for (var connectionId : connectionIds) {
+            futures.put(connectionId, new CompletableFuture<>());
+        }
+
+        final List<Map<String, AttributeValue>> chunk = new ArrayList<>(BATCH_GET_LIMIT);
+        for (var connectionId : connectionIds) {
+            chunk.add(authKey(connectionId));
+            if (chunk.size() == BATCH_GET_LIMIT) {
+                batchGet(new ArrayList<>(chunk), futures, 1);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            batchGet(chunk, futures, 1);
+        }
+        return futures;
+    }
+
+    private void batchGet(List<Map<String, AttributeValue>> keys, Map<String, CompletableFuture<GetItemResponse>> futures, int attempt) {
+        manager.getDynamoDbAsyncClient()
+                .batchGetItem(t -> t.requestItems(Map.of(subscriptionTable, KeysAndAttributes.builder().keys(keys).build())))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        keys.forEach(key -> futures.get(key.get("connectionId").s()).completeExceptionally(error));
+                        return;
+                    }
+                    completeConnections(response, futures);
+
+                    final var unprocessed = response.unprocessedKeys().get(subscriptionTable);
+                    if (unprocessed == null || unprocessed.keys().isEmpty()) {
+                        completeMissing(keys, futures);
+                        return;
+                    }
+                    if (attempt == BATCH_GET_ATTEMPTS) {
+                        final var failure = new IllegalStateException("auth rows still unprocessed after " + attempt + " attempts");
+                        unprocessed.keys().forEach(key -> futures.get(key.get("connectionId").s()).completeExceptionally(failure));
+                        completeMissing(keys, futures);
+                        return;
+                    }
+                    // unprocessed keys are throttled reads, back off before asking again
+                    final var delay = BATCH_GET_BACKOFF_MILLIS << (attempt - 1);
+                    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                            .execute(() -> batchGet(unprocessed.keys(), futures, attempt + 1));
+                    completeMissing(without(keys, unprocessed.keys()), futures);
+                });
+    }
+
+    private void completeConnections(BatchGetItemResponse response, Map<String, CompletableFuture<GetItemResponse>> futures) {
+        final var items = response.responses().get(subscriptionTable);
+        if (items == null) {
+            return;
+        }
+        for (var item : items) {
+            futures.get(item.get("connectionId").s()).complete(GetItemResponse.builder().item(item).build());
+        }
+    }
+
+    /**
+     * connections asked for that are not in the table, completed as not authenticated
+     */
+    private static void completeMissing(List<Map<String, AttributeValue>> keys, Map<String, CompletableFuture<GetItemResponse>> futures) {
+        keys.forEach(key -> futures.get(key.get("connectionId").s()).complete(GetItemResponse.builder().build()));
+    }
+
+    private static List<Map<String, AttributeValue>> without(List<Map<String, AttributeValue>> keys, List<Map<String, AttributeValue>> remove) {
+        final List<Map<String, AttributeValue>> remaining = new ArrayList<>(keys);
+        remaining.removeAll(remove);
+        return remaining;
+    }
+
+    private ApiGatewayManagementApiAsyncClient buildGatewayApi() {
+        if (gatewayUri == null) {
+            return null;
+        }
+        return ApiGatewayManagementApiAsyncClient.builder().endpointOverride(gatewayUri).build();
+    }
+
+    /**
+     * primes before a SnapStart snapshot is taken so restored lambdas start warm
+     */
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+        prime();
+    }
+
+    /**
+     * connections made before the snapshot are not usable after restore, so the gateway client and database manager
+     * are rebuilt and cached lookups, which hold futures of the old clients, are dropped
+     */
+    @Override
+    public void afterRestore(Context<? extends Resource> context) throws Exception {
+        final var oldGatewayApi = gatewayApi;
+        this.manager = builderManager();
+        this.gatewayApi = buildGatewayApi();
+        if (oldGatewayApi != null) {
+            oldGatewayApi.close();
+        }
+        LambdaCache.reset();
+    }
+
+    /**
+     * subscription queries run when the lambda starts and on keep warm pings, the published events are not consumed.
+     * Called from the constructor before subclass fields are set
+     * @return empty to skip priming
+     */
+    protected List<GraphQLQuery> warmupQueries() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param query the warm up query about to run
+     * @return context to run it with, defaults to one that does nothing
+     */
+    protected ContextGraphQL buildWarmupContext(GraphQLQuery query) {
+        return Warmup.NOOP_CONTEXT;
+    }
+
+    /**
+     * runs the {@link #warmupQueries()}, override to prime anything else calling super to keep the queries
+     */
+    protected void prime() {
+        try {
+            Warmup.run(graph, warmupQueries(), this::buildWarmupContext);
+        } finally {
+            LambdaCache.evict();
+        }
+    }
+
+    /**
+     * the source can be triggered by any event type so keep warm pings are not recognised unless this is overridden
+     * @param input the event
+     * @return if the event is a scheduled keep warm ping
+     */
+    protected boolean isKeepWarm(E input) {
+        return false;
+    }
+
+    /**
+     * for the start of {@code handleRequest}, returning straight away when this is true
+     * @param input the event
+     * @return true if the event was a keep warm ping, in which case the primes have been refreshed
+     */
+    protected boolean keepWarm(E input) {
+        if (!isKeepWarm(input)) {
+            return false;
+        }
+        prime();
+        return true;
     }
 
     protected abstract void prepare() throws Exception;
@@ -115,15 +363,46 @@ public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E
 
     @VisibleForTesting
     protected CompletableFuture<?> process(T t) {
+        if (metrics == null) {
+            return publish(t);
+        }
+        final var requestMetrics = metrics.start();
+        requestMetrics.operation("subscription");
+        final CompletableFuture<?> published;
+        try {
+            published = publish(t);
+        } catch (RuntimeException e) {
+            close(requestMetrics, e);
+            throw e;
+        }
+        return published.whenComplete((__, error) -> close(requestMetrics, error));
+    }
+
+    private static void close(RequestMetrics requestMetrics, Throwable error) {
+        if (error != null) {
+            requestMetrics.failure();
+        }
+        requestMetrics.caches(LambdaCache.stats());
+        requestMetrics.close();
+    }
+
+    private CompletableFuture<?> publish(T t) {
         return organisationCache.get(buildSubscriptionId(t)).thenCompose(items -> {
             final List<CompletableFuture<Void>> parts = new ArrayList<>();
 
+            final List<String> connectionIds = new ArrayList<>();
+            for (var item : items.items()) {
+                connectionIds.add(item.get("connectionId").s());
+            }
+            // one batched lookup for every subscriber rather than a GetItem each
+            final var users = userCache.getAll(connectionIds);
+
             for (var item : items.items()) {
                 final var connectionId = item.get("connectionId").s();
                 final var id = item.get("id").s();
                 final var query = manager.convertTo(item.get("query"), GraphQLQuery.class);
 
-                parts.add(processUpdate(connectionId, id, query, t));
+                parts.add(processUpdate(users.get(connectionId), connectionId, id, query, t));
             }
 
             return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new));
@@ -132,8 +411,8 @@ public abstract class LambdaSubscriptionSource<E, T> implements RequestHandler<E
     }
 
 
-    private CompletableFuture<Void> processUpdate(String connectionId, String id, GraphQLQuery query, T t) {
-        return userCache.get(connectionId).thenCompose(user -> {
+    private CompletableFuture<Void> processUpdate(CompletableFuture<GetItemResponse> auth, String connectionId, String id, GraphQLQuery query, T t) {
+        return auth.thenCompose(user -> {
             if (user.item() == null || user.item().isEmpty()) {
                 //not authenticated
                 return CompletableFuture.completedFuture(null);
@@ -0,0 +1,465 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.hash.Hashing;
+
+import graphql.analysis.QueryTraverser;
+import graphql.analysis.QueryVisitorFieldEnvironment;
+import graphql.analysis.QueryVisitorStub;
+import graphql.cachecontrol.CacheControl.Scope;
+import graphql.execution.ExecutionContext;
+import graphql.language.AstTransformer;
+import graphql.language.Directive;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.Node;
+import graphql.language.NodeVisitorStub;
+import graphql.language.OperationDefinition.Operation;
+import graphql.schema.GraphQLDirectiveContainer;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLTypeUtil;
+import graphql.util.TraversalControl;
+import graphql.util.TraverserContext;
+import graphql.util.TreeTransformerUtil;
+
+/**
+ * Keeps whole responses of read only queries, already serialized and compressed, so a repeat of the same query skips
+ * execution and serialization.
+ *
+ * How long a response lives comes from {@code @cacheControl(maxAge: Int, scope: PUBLIC|PRIVATE)} on the fields it
+ * selects, or on the types those fields return, or from {@link #hint(String, String, int, Scope)} for schemas that
+ * can not declare directives. The shortest max age of all the selected fields wins and any private field makes the
+ * whole response private to the user. Fields returning objects without a hint use the default max age, 0 unless set,
+ * which keeps the response out of the cache. Leaf fields without a hint follow their parent. Mutations and
+ * subscriptions are never cached. The policy is worked out once per document, so fields under {@code @include} and
+ * {@code @skip} count whatever the variables are and every request gets the most restrictive policy.
+ *
+ * The key is the query with insignificant whitespace, commas and comments stripped, the operation name, the variables
+ * and, for private responses, the user id.
+ */
+public class ResponseCache {
+
+	public static final String DIRECTIVE = "cacheControl";
+
+	private static final CachePolicy UNCACHEABLE = new CachePolicy(0, Scope.PUBLIC);
+	private static final ObjectWriter VARIABLES = new ObjectMapper().writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+
+	private final Map<String, CachePolicy> policies;
+	private final Map<String, Entry> responses;
+	private final Map<String, CachePolicy> hints = new HashMap<>();
+	private final Clock clock;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private int defaultMaxAge;
+
+	public ResponseCache(int maximumSize) {
+		this(maximumSize, Clock.systemUTC());
+	}
+
+	public ResponseCache(int maximumSize, Clock clock) {
+		if(maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive " + maximumSize);
+		}
+		this.clock = clock;
+		this.policies = lru(maximumSize);
+		this.responses = lru(maximumSize);
+	}
+
+	/**
+	 * @param type the object or interface name
+	 * @param field the field on that type
+	 * @param maxAge seconds a response selecting the field can be reused
+	 * @param scope private responses are only reused for the same user
+	 * @return this
+	 */
+	public ResponseCache hint(String type, String field, int maxAge, Scope scope) {
+		hints.put(type + "." + field, new CachePolicy(maxAge, scope));
+		return this;
+	}
+
+	/**
+	 * @param maxAge seconds used for fields returning objects that have no hint
+	 * @return this
+	 */
+	public ResponseCache defaultMaxAge(int maxAge) {
+		this.defaultMaxAge = maxAge;
+		return this;
+	}
+
+	/**
+	 * @param query the query text
+	 * @param operationName the operation to run, may be null
+	 * @return identifies the document, the same for queries that only differ in whitespace, commas or comments
+	 */
+	public String documentKey(String query, String operationName) {
+		var hash = Hashing.sha256().hashString(normalize(query), StandardCharsets.UTF_8).toString();
+		return operationName == null ? hash : hash + ":" + operationName;
+	}
+
+	/**
+	 * @param documentKey from {@link #documentKey(String, String)}
+	 * @return null until the document has been executed once
+	 */
+	public CachePolicy policy(String documentKey) {
+		synchronized (policies) {
+			return policies.get(documentKey);
+		}
+	}
+
+	/**
+	 * works out the policy of the operation about to run, unless it is already known
+	 * @param executionContext the operation about to be executed
+	 */
+	public void recordPolicy(ExecutionContext executionContext) {
+		var input = executionContext.getExecutionInput();
+		var documentKey = documentKey(input.getQuery(), input.getOperationName());
+		if(policy(documentKey) != null) {
+			return;
+		}
+		var policy = computePolicy(executionContext);
+		synchronized (policies) {
+			policies.put(documentKey, policy);
+		}
+	}
+
+	/**
+	 * @param documentKey from {@link #documentKey(String, String)}
+	 * @param variables the request variables
+	 * @param userId required for private responses, null for public ones
+	 * @return the key responses are stored under
+	 */
+	public String responseKey(String documentKey, Map<String, Object> variables, String userId) {
+		String vars;
+		try {
+			vars = variables == null ? "{}" : VARIABLES.writeValueAsString(variables);
+		}catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("variables can not be written as json", e);
+		}
+		var hasher = Hashing.sha256().newHasher().putString(documentKey, StandardCharsets.UTF_8).putByte((byte) 0).putString(vars, StandardCharsets.UTF_8);
+		if(userId != null) {
+			hasher.putByte((byte) 0).putString(userId, StandardCharsets.UTF_8);
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * @param responseKey from {@link #responseKey(String, Map, String)}
+	 * @param encoding what the client accepts, null for uncompressed
+	 * @return the stored response, null if missing or expired
+	 */
+	public GraphQLResponse get(String responseKey, ResponseCompressor.Encoding encoding) {
+		Entry entry;
+		synchronized (responses) {
+			entry = responses.get(responseKey);
+			if(entry != null && entry.expiresAt <= clock.millis()) {
+				responses.remove(responseKey);
+				entry = null;
+			}
+		}
+		var response = entry == null ? null : entry.responses[slot(encoding)];
+		if(response == null) {
+			misses.increment();
+		}else {
+			hits.increment();
+		}
+		return response;
+	}
+
+	/**
+	 * @param documentKey the policy of this document decides how long the response lives
+	 * @param responseKey from {@link #responseKey(String, Map, String)}
+	 * @param encoding what the client accepted, null for uncompressed
+	 * @param response the response as sent
+	 */
+	public void put(String documentKey, String responseKey, ResponseCompressor.Encoding encoding, GraphQLResponse response) {
+		var policy = policy(documentKey);
+		if(policy == null || !policy.isCacheable()) {
+			return;
+		}
+		var body = Arrays.copyOf(response.getBody(), response.getBodyLength());
+		var copy = new GraphQLResponse(response.getStatusCode(), response.getHeaders(), body, body.length, response.isBase64Encoded());
+		var now = clock.millis();
+		synchronized (responses) {
+			var entry = responses.get(responseKey);
+			if(entry == null || entry.expiresAt <= now) {
+				entry = new Entry(now + policy.getMaxAge() * 1000L);
+				responses.put(responseKey, entry);
+			}
+			entry.responses[slot(encoding)] = copy;
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		synchronized (responses) {
+			return responses.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (responses) {
+			responses.clear();
+		}
+	}
+
+	private CachePolicy computePolicy(ExecutionContext executionContext) {
+		if(executionContext.getOperationDefinition().getOperation() != Operation.QUERY) {
+			return UNCACHEABLE;
+		}
+		var traverser = QueryTraverser.newQueryTraverser()
+				.schema(executionContext.getGraphQLSchema())
+				.document(withoutConditions(executionContext.getDocument()))
+				.operationName(executionContext.getExecutionInput().getOperationName())
+				.variables(executionContext.getVariables())
+				.build();
+		var visitor = new PolicyVisitor();
+		traverser.visitPreOrder(visitor);
+		return new CachePolicy(visitor.maxAge == Integer.MAX_VALUE ? defaultMaxAge : visitor.maxAge, visitor.scope);
+	}
+
+	/**
+	 * drops {@code @include} and {@code @skip} so the traversal visits fields another request's variables may select
+	 */
+	@SuppressWarnings("rawtypes") // the NodeVisitor methods being overridden take a context of raw Node
+	private static Document withoutConditions(Document document) {
+		return (Document) new AstTransformer().transform(document, new NodeVisitorStub() {
+			@Override
+			public TraversalControl visitField(Field node, TraverserContext<Node> context) {
+				if(!isConditional(node.getDirectives())) {
+					return TraversalControl.CONTINUE;
+				}
+				return TreeTransformerUtil.changeNode(context, node.transform(builder -> builder.directives(unconditional(node.getDirectives()))));
+			}
+
+			@Override
+			public TraversalControl visitFragmentSpread(FragmentSpread node, TraverserContext<Node> context) {
+				if(!isConditional(node.getDirectives())) {
+					return TraversalControl.CONTINUE;
+				}
+				return TreeTransformerUtil.changeNode(context, node.transform(builder -> builder.directives(unconditional(node.getDirectives()))));
+			}
+
+			@Override
+			public TraversalControl visitInlineFragment(InlineFragment node, TraverserContext<Node> context) {
+				if(!isConditional(node.getDirectives())) {
+					return TraversalControl.CONTINUE;
+				}
+				return TreeTransformerUtil.changeNode(context, node.transform(builder -> builder.directives(unconditional(node.getDirectives()))));
+			}
+		});
+	}
+
+	private static boolean isConditional(List<Directive> directives) {
+		for(var directive : directives) {
+			if(isCondition(directive)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isCondition(Directive directive) {
+		return directive.getName().equals("include") || directive.getName().equals("skip");
+	}
+
+	private static List<Directive> unconditional(List<Directive> directives) {
+		return directives.stream().filter(directive -> !isCondition(directive)).collect(Collectors.toList());
+	}
+
+	private CachePolicy hint(GraphQLFieldsContainer parent, GraphQLFieldDefinition field) {
+		var hint = directive(field);
+		if(hint == null) {
+			var type = GraphQLTypeUtil.unwrapAll(field.getType());
+			if(type instanceof GraphQLDirectiveContainer) {
+				hint = directive((GraphQLDirectiveContainer) type);
+			}
+		}
+		if(hint == null) {
+			hint = hints.get(parent.getName() + "." + field.getName());
+		}
+		return hint;
+	}
+
+	private static CachePolicy directive(GraphQLDirectiveContainer container) {
+		var directive = container.getDirective(DIRECTIVE);
+		if(directive == null) {
+			return null;
+		}
+		var maxAge = directive.getArgument("maxAge");
+		var scope = directive.getArgument("scope");
+		int age = maxAge == null || maxAge.getValue() == null ? 0 : Integer.parseInt(maxAge.getValue().toString());
+		var value = scope == null || scope.getValue() == null ? Scope.PUBLIC : Scope.valueOf(scope.getValue().toString());
+		return new CachePolicy(age, value);
+	}
+
+	private class PolicyVisitor extends QueryVisitorStub {
+		private int maxAge = Integer.MAX_VALUE;
+		private Scope scope = Scope.PUBLIC;
+
+		@Override
+		public void visitField(QueryVisitorFieldEnvironment env) {
+			if(env.isTypeNameIntrospectionField()) {
+				return;
+			}
+			var hint = hint(env.getFieldsContainer(), env.getFieldDefinition());
+			if(hint != null) {
+				maxAge = Math.min(maxAge, hint.getMaxAge());
+				if(hint.getScope() == Scope.PRIVATE) {
+					scope = Scope.PRIVATE;
+				}
+			}else if(!GraphQLTypeUtil.isLeaf(GraphQLTypeUtil.unwrapAll(env.getFieldDefinition().getType()))) {
+				maxAge = Math.min(maxAge, defaultMaxAge);
+			}
+		}
+	}
+
+	private static int slot(ResponseCompressor.Encoding encoding) {
+		return encoding == null ? 0 : encoding.ordinal() + 1;
+	}
+
+	/**
+	 * strips the tokens graphql ignores, keeping a single space only where two names or numbers would otherwise join
+	 */
+	static String normalize(String query) {
+		var out = new StringBuilder(query.length());
+		int i = 0;
+		boolean gap = false;
+		while(i < query.length()) {
+			char c = query.charAt(i);
+			if(c == '#') {
+				while(i < query.length() && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+					i++;
+				}
+				gap = true;
+				continue;
+			}
+			if(c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == ',' || c == '\uFEFF') {
+				gap = true;
+				i++;
+				continue;
+			}
+			if(gap && out.length() > 0 && word(out.charAt(out.length() - 1)) && word(c)) {
+				out.append(' ');
+			}
+			gap = false;
+			if(c == '"') {
+				int end = query.startsWith("\"\"\"", i) ? blockStringEnd(query, i + 3) : stringEnd(query, i + 1);
+				out.append(query, i, end);
+				i = end;
+				continue;
+			}
+			out.append(c);
+			i++;
+		}
+		return out.toString();
+	}
+
+	private static boolean word(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	private static int stringEnd(String query, int i) {
+		while(i < query.length()) {
+			char c = query.charAt(i++);
+			if(c == '\\') {
+				i++;
+			}else if(c == '"') {
+				return i;
+			}
+		}
+		return query.length();
+	}
+
+	private static int blockStringEnd(String query, int i) {
+		while(i < query.length()) {
+			if(query.startsWith("\\\"\"\"", i)) {
+				i += 4;
+			}else if(query.startsWith("\"\"\"", i)) {
+				return i + 3;
+			}else {
+				i++;
+			}
+		}
+		return query.length();
+	}
+
+	private static <K, V> Map<K, V> lru(int maximumSize) {
+		return new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * How long responses of a document may be reused and by whom.
+	 */
+	public static class CachePolicy {
+		private final int maxAge;
+		private final Scope scope;
+
+		public CachePolicy(int maxAge, Scope scope) {
+			this.maxAge = maxAge;
+			this.scope = scope;
+		}
+
+		/**
+		 * @return seconds
+		 */
+		public int getMaxAge() {
+			return maxAge;
+		}
+
+		public Scope getScope() {
+			return scope;
+		}
+
+		public boolean isCacheable() {
+			return maxAge > 0;
+		}
+	}
+
+	private static class Entry {
+		private final long expiresAt;
+		private final GraphQLResponse[] responses = new GraphQLResponse[ResponseCompressor.Encoding.values().length + 1];
+
+		public Entry(long expiresAt) {
+			this.expiresAt = expiresAt;
+		}
+	}
+}
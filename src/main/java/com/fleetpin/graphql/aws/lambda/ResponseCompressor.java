@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies into base64 for API gateway. Deflaters are pooled between invocations and bodies
+ * smaller than the minimum size are passed through untouched as base64 would make them bigger.
+ */
+public class ResponseCompressor {
+
+	private static final int MAX_POOLED = 8;
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	public enum Encoding {
+		GZIP("gzip"), DEFLATE("deflate");
+
+		private final String headerValue;
+
+		Encoding(String headerValue) {
+			this.headerValue = headerValue;
+		}
+
+		public String getHeaderValue() {
+			return headerValue;
+		}
+	}
+
+	private final int level;
+	private final int minimumSize;
+	private final Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+	private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param level deflate level, {@link Deflater#DEFAULT_COMPRESSION} or 0-9
+	 * @param minimumSize bodies smaller than this many bytes are not compressed
+	 */
+	public ResponseCompressor(int level, int minimumSize) {
+		this.level = level;
+		this.minimumSize = minimumSize;
+	}
+
+	/**
+	 * @param encoding how to compress
+	 * @param target receives the base64 of the compressed body, or the body as is if it stays under the minimum size
+	 * @return stream to write the body to, must be closed
+	 */
+	public CompressingOutputStream compress(Encoding encoding, OutputStream target) {
+		return new CompressingOutputStream(encoding, target);
+	}
+
+	private Queue<Deflater> pool(Encoding encoding) {
+		return encoding == Encoding.GZIP ? gzipDeflaters : zlibDeflaters;
+	}
+
+	private Deflater borrow(Encoding encoding) {
+		var deflater = pool(encoding).poll();
+		if(deflater == null) {
+			// gzip writes its own header and trailer around raw deflate, http deflate is zlib wrapped
+			deflater = new Deflater(level, encoding == Encoding.GZIP);
+		}
+		return deflater;
+	}
+
+	private void release(Encoding encoding, Deflater deflater) {
+		var pool = pool(encoding);
+		if(pool.size() < MAX_POOLED) {
+			deflater.reset();
+			pool.offer(deflater);
+		}else {
+			deflater.end();
+		}
+	}
+
+	public class CompressingOutputStream extends OutputStream {
+		private final Encoding encoding;
+		private final OutputStream target;
+		private final byte[] pending;
+		private int pendingCount;
+
+		private OutputStream base64;
+		private Deflater deflater;
+		private CRC32 crc;
+		private byte[] chunk;
+		private boolean closed;
+		private long bytesIn;
+		private long compressionNanos;
+
+		private CompressingOutputStream(Encoding encoding, OutputStream target) {
+			this.encoding = encoding;
+			this.target = target;
+			this.pending = new byte[Math.max(minimumSize, 0)];
+		}
+
+		/**
+		 * @return true once the body went over the minimum size and is being compressed
+		 */
+		public boolean isCompressed() {
+			return base64 != null;
+		}
+
+		public Encoding getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * @return bytes written to this stream, before compression
+		 */
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		/**
+		 * @return time spent deflating, 0 if the body was never compressed
+		 */
+		public long getCompressionNanos() {
+			return compressionNanos;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			bytesIn += len;
+			if(base64 == null) {
+				if(pendingCount + len < pending.length) {
+					System.arraycopy(b, off, pending, pendingCount, len);
+					pendingCount += len;
+					return;
+				}
+				start();
+			}
+			deflate(b, off, len);
+		}
+
+		private void start() throws IOException {
+			base64 = Base64.getEncoder().wrap(target);
+			deflater = borrow(encoding);
+			chunk = new byte[8192];
+			if(encoding == Encoding.GZIP) {
+				crc = new CRC32();
+				base64.write(GZIP_HEADER);
+			}
+			deflate(pending, 0, pendingCount);
+		}
+
+		private void deflate(byte[] b, int off, int len) throws IOException {
+			if(len == 0) {
+				return;
+			}
+			long start = System.nanoTime();
+			if(crc != null) {
+				crc.update(b, off, len);
+			}
+			deflater.setInput(b, off, len);
+			while(!deflater.needsInput()) {
+				drain();
+			}
+			compressionNanos += System.nanoTime() - start;
+		}
+
+		private void drain() throws IOException {
+			int count = deflater.deflate(chunk, 0, chunk.length, Deflater.NO_FLUSH);
+			if(count > 0) {
+				base64.write(chunk, 0, count);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			if(base64 == null) {
+				target.write(pending, 0, pendingCount);
+				target.close();
+				return;
+			}
+			try {
+				long start = System.nanoTime();
+				deflater.finish();
+				while(!deflater.finished()) {
+					drain();
+				}
+				compressionNanos += System.nanoTime() - start;
+				if(crc != null) {
+					writeInt((int) crc.getValue());
+					writeInt((int) deflater.getBytesRead());
+				}
+				base64.close();
+			} finally {
+				release(encoding, deflater);
+				deflater = null;
+			}
+		}
+
+		private void writeInt(int value) throws IOException {
+			base64.write(value & 0xff);
+			base64.write((value >> 8) & 0xff);
+			base64.write((value >> 16) & 0xff);
+			base64.write((value >> 24) & 0xff);
+		}
+	}
+}
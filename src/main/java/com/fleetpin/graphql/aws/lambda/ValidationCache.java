@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.exceptions.JWTDecodeException;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers the user a token validated to, until the token expires or the max ttl passes, whichever comes first.
+ * Tokens are only held as a sha256. Concurrent lookups of the same token share one validation and failed
+ * validations are never cached. Least recently used tokens are dropped once the cache is full.
+ */
+public class ValidationCache<U> {
+
+	private final Map<HashCode, Validated<U>> entries;
+	private final long maxTTL;
+	private final Clock clock;
+
+	public ValidationCache(int maximumSize, Duration maxTTL) {
+		this(maximumSize, maxTTL, Clock.systemUTC());
+	}
+
+	public ValidationCache(int maximumSize, Duration maxTTL, Clock clock) {
+		if(maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive " + maximumSize);
+		}
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<HashCode, Validated<U>> eldest) {
+				return size() > maximumSize;
+			}
+		};
+		this.maxTTL = maxTTL.toMillis();
+		this.clock = clock;
+	}
+
+	/**
+	 * @param token the auth header
+	 * @param validator called on a miss
+	 * @return the cached or newly validated user
+	 */
+	public CompletableFuture<U> get(String token, Function<String, CompletableFuture<U>> validator) {
+		if(token == null) {
+			return validator.apply(token);
+		}
+		var key = Hashing.sha256().hashString(token, StandardCharsets.UTF_8);
+		var now = clock.millis();
+		Validated<U> existing;
+		synchronized (entries) {
+			existing = entries.get(key);
+			if(existing != null) {
+				if(existing.expiresAt > now) {
+					return existing.user;
+				}
+				entries.remove(key);
+			}
+		}
+
+		var entry = new Validated<U>(new CompletableFuture<>(), Math.min(now + maxTTL, expiry(token)));
+		if(entry.expiresAt <= now) {
+			return validator.apply(token);
+		}
+		synchronized (entries) {
+			existing = entries.putIfAbsent(key, entry);
+		}
+		if(existing != null) {
+			return existing.user;
+		}
+
+		CompletableFuture<U> loaded;
+		try {
+			loaded = validator.apply(token);
+		}catch (RuntimeException e) {
+			loaded = CompletableFuture.failedFuture(e);
+		}
+		loaded.whenComplete((user, error) -> {
+			if(error != null) {
+				synchronized (entries) {
+					entries.remove(key, entry);
+				}
+				entry.user.completeExceptionally(error);
+			}else {
+				entry.user.complete(user);
+			}
+		});
+		return entry.user;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private long expiry(String token) {
+		var jwt = token.regionMatches(true, 0, "Bearer ", 0, 7) ? token.substring(7) : token;
+		try {
+			var expiresAt = JWT.decode(jwt).getExpiresAt();
+			if(expiresAt != null) {
+				return expiresAt.getTime();
+			}
+		}catch (JWTDecodeException e) {
+			// not a jwt, only the max ttl applies
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static class Validated<U> {
+		private final CompletableFuture<U> user;
+		private final long expiresAt;
+
+		public Validated(CompletableFuture<U> user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
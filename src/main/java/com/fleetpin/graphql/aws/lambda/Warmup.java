@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayV2ProxyRequestEvent;
+
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+
+/**
+ * Runs priming queries so class loading, JIT and first time schema work happen before real traffic arrives.
+ */
+final class Warmup {
+
+	private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+	/**
+	 * handed to resolvers when no warm up context is given
+	 */
+	static final ContextGraphQL NOOP_CONTEXT = complete -> {};
+
+	private Warmup() {
+	}
+
+	/**
+	 * @param graph to run the queries against
+	 * @param queries to run, failures are logged and never thrown as priming must not stop the lambda starting
+	 * @param context builds the context of each query
+	 * @return the results of the queries that ran
+	 */
+	static List<ExecutionResult> run(GraphQL graph, List<GraphQLQuery> queries, Function<GraphQLQuery, ?> context) {
+		var results = new ArrayList<ExecutionResult>(queries.size());
+		if(graph == null) {
+			return results;
+		}
+		for(var query : queries) {
+			try {
+				var graphContext = context.apply(query);
+				var execution = graph.executeAsync(builder -> builder.query(query.getQuery())
+						.operationName(query.getOperationName())
+						.variables(query.getVariables())
+						.context(graphContext));
+				if(graphContext instanceof ContextGraphQL) {
+					((ContextGraphQL) graphContext).start(execution);
+				}
+				var result = execution.get();
+				if(!result.getErrors().isEmpty()) {
+					logger.debug("Warm up query {} returned errors {}", query.getOperationName(), result.getErrors());
+				}
+				results.add(result);
+			}catch (Exception e) {
+				logger.warn("Failed to run warm up query {}", query.getOperationName(), e);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * scheduled events, such as EventBridge keep warm rules, carry neither a body, http method nor the API gateway request context
+	 * @param input the event
+	 * @return if the event is a keep warm ping rather than a request
+	 */
+	static boolean isKeepWarm(APIGatewayV2ProxyRequestEvent input) {
+		return input.getRequestContext() == null && input.getHttpMethod() == null && input.getBody() == null;
+	}
+}
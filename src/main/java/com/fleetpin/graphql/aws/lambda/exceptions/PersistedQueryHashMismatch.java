@@ -0,0 +1,41 @@
+package com.fleetpin.graphql.aws.lambda.exceptions;
+
+import graphql.ErrorClassification;
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.language.SourceLocation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Returned when the sha256 hash sent with a persisted query does not match the query text.
+ */
+public class PersistedQueryHashMismatch extends RuntimeException implements GraphQLError {
+    private static final long serialVersionUID = 1L;
+    private static final String MESSAGE = "provided sha does not match query";
+
+    public PersistedQueryHashMismatch() {
+        super(MESSAGE);
+    }
+
+    @Override
+    public String getMessage() {
+        return MESSAGE;
+    }
+
+    @Override
+    public List<SourceLocation> getLocations() {
+        return List.of();
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return Map.of("code", "INVALID_PERSISTED_QUERY");
+    }
+
+    @Override
+    public ErrorClassification getErrorType() {
+        return ErrorType.ValidationError;
+    }
+}
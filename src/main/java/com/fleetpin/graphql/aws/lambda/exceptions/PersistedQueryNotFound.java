@@ -0,0 +1,42 @@
+package com.fleetpin.graphql.aws.lambda.exceptions;
+
+import graphql.ErrorClassification;
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.language.SourceLocation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Returned when a client only sends the hash of a persisted query that this lambda does not know about.
+ * Apollo clients react to this message by resending the request with the full query text.
+ */
+public class PersistedQueryNotFound extends RuntimeException implements GraphQLError {
+    private static final long serialVersionUID = 1L;
+    private static final String MESSAGE = PersistedQueryNotFound.class.getSimpleName();
+
+    public PersistedQueryNotFound() {
+        super(MESSAGE);
+    }
+
+    @Override
+    public String getMessage() {
+        return MESSAGE;
+    }
+
+    @Override
+    public List<SourceLocation> getLocations() {
+        return List.of();
+    }
+
+    @Override
+    public Map<String, Object> getExtensions() {
+        return Map.of("code", "PERSISTED_QUERY_NOT_FOUND");
+    }
+
+    @Override
+    public ErrorClassification getErrorType() {
+        return ErrorType.ValidationError;
+    }
+}
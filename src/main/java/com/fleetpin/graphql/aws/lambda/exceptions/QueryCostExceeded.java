@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.exceptions;
+
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostAnalyser;
+import graphql.ErrorType;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.AbortExecutionException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aborts an operation that is deeper, wider or more expensive than the {@link QueryCostAnalyser} allows.
+ * The returned error carries the computed cost and the limits so clients can tell which one they went over.
+ */
+public class QueryCostExceeded extends AbortExecutionException {
+    private static final long serialVersionUID = 1L;
+    private static final String MESSAGE = "Query exceeds the allowed cost";
+
+    private final QueryCost cost;
+
+    public QueryCostExceeded(final QueryCost cost, final QueryCostAnalyser analyser) {
+        super(List.of(GraphqlErrorBuilder.newError()
+                .message(MESSAGE)
+                .errorType(ErrorType.ExecutionAborted)
+                .extensions(Map.of(
+                        "code", "QUERY_TOO_EXPENSIVE",
+                        "depth", cost.getDepth(),
+                        "fields", cost.getFields(),
+                        "cost", cost.getCost(),
+                        "maxDepth", analyser.getMaxDepth(),
+                        "maxFields", analyser.getMaxFields(),
+                        "maxCost", analyser.getMaxCost()))
+                .build()));
+        this.cost = cost;
+    }
+
+    public QueryCost getCost() {
+        return cost;
+    }
+
+    @Override
+    public String getMessage() {
+        return MESSAGE;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.fleetpin.graphql.aws.lambda.Deadline;
+
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.DataFetcherResult;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+
+/**
+ * Stops field fetches once the request's {@link Deadline} has passed. Fields fetched after the deadline and async
+ * fields still outstanding at it resolve to null with a {@code DEADLINE_EXCEEDED} error, so whatever did finish is
+ * still returned. Outstanding futures are cancelled. Fetchers that block are not interrupted.
+ */
+public class DeadlineInstrumentation extends SimpleInstrumentation {
+
+	private static final Object TIMED_OUT = new Object();
+
+	@Override
+	public DataFetcher<?> instrumentDataFetcher(DataFetcher<?> dataFetcher, InstrumentationFieldFetchParameters parameters) {
+		if(parameters.isTrivialDataFetcher()) {
+			return dataFetcher;
+		}
+		// the execution context already holds the real context, the input still has the pending one
+		var deadline = PendingContext.deadline(parameters.getExecutionContext().getExecutionInput().getContext());
+		if(!deadline.isBounded()) {
+			return dataFetcher;
+		}
+		return env -> {
+			if(deadline.isExpired()) {
+				return timedOut(env);
+			}
+			Object value = dataFetcher.get(env);
+			if(!(value instanceof CompletableFuture) || ((CompletableFuture<?>) value).isDone()) {
+				return value;
+			}
+			var future = (CompletableFuture<?>) value;
+			var bounded = new CompletableFuture<Object>();
+			future.whenComplete((result, error) -> {
+				if(error == null) {
+					bounded.complete(result);
+				}else {
+					bounded.completeExceptionally(error);
+				}
+			});
+			// the timer is dropped as soon as the fetch completes
+			return bounded.completeOnTimeout(TIMED_OUT, deadline.remainingMillis(), TimeUnit.MILLISECONDS).thenApply(result -> {
+				if(result == TIMED_OUT) {
+					future.cancel(true);
+					return timedOut(env);
+				}
+				return result;
+			});
+		};
+	}
+
+	private static DataFetcherResult<Object> timedOut(DataFetchingEnvironment env) {
+		return DataFetcherResult.newResult().error(deadlineExceeded(GraphqlErrorBuilder.newError(env), "Deadline exceeded before the field resolved")).build();
+	}
+
+	/**
+	 * @return error for a request that did not complete before its deadline
+	 */
+	public static GraphQLError deadlineExceeded() {
+		return deadlineExceeded(GraphqlErrorBuilder.newError(), "Deadline exceeded before the request completed");
+	}
+
+	private static GraphQLError deadlineExceeded(GraphqlErrorBuilder builder, String message) {
+		return builder.message(message)
+				.errorType(ErrorType.ExecutionAborted)
+				.extensions(Map.of("code", "DEADLINE_EXCEEDED"))
+				.build();
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import org.dataloader.DataLoaderRegistry;
+
+import com.fleetpin.graphql.aws.lambda.ContextGraphQL;
+
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+
+/**
+ * Replaces a {@link PendingContext} with the context it builds once parsing and validation are done. Operations the
+ * pending context does not allow are stopped before the context is built. The data loaders of a {@link ContextGraphQL}
+ * are handed to graphql along with it.
+ */
+public class DeferredContextInstrumentation extends SimpleInstrumentation {
+
+	@Override
+	public ExecutionContext instrumentExecutionContext(ExecutionContext executionContext, InstrumentationExecutionParameters parameters) {
+		Object context = executionContext.getContext();
+		if(context instanceof PendingContext) {
+			PendingContext<?, ?> pending = (PendingContext<?, ?>) context;
+			pending.checkOperation(executionContext.getOperationDefinition().getOperation());
+			Object resolved = pending.resolve();
+			if(resolved instanceof ContextGraphQL) {
+				// picked up from the execution context by the data loader dispatcher as the operation begins
+				DataLoaderRegistry registry = ((ContextGraphQL) resolved).getDataLoaderRegistry();
+				if(registry != null) {
+					return executionContext.transform(builder -> builder.context(resolved).dataLoaderRegistry(registry));
+				}
+			}
+			return executionContext.transform(builder -> builder.context(resolved));
+		}
+		return executionContext;
+	}
+}
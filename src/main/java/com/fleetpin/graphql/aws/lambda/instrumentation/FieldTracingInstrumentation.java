@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.execution.ExecutionStepInfo;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationCreateStateParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationValidationParameters;
+import graphql.language.Document;
+import graphql.schema.GraphQLTypeUtil;
+import graphql.validation.ValidationError;
+
+/**
+ * Records when each field fetch started and how long it took, in the apollo tracing format. Only sampled requests are
+ * traced, picked at random by rate or asked for with a request header. Requests that are not sampled carry no state
+ * so they only pay a null check per field. Traces go to the response {@code tracing} extension unless a sink is set.
+ */
+public class FieldTracingInstrumentation extends SimpleInstrumentation {
+
+	public static final String EXTENSION = "tracing";
+	private static final int INITIAL_FIELDS = 64;
+
+	private final double sampleRate;
+	private String header;
+	private boolean trivialFields;
+	private BiConsumer<String, Map<String, Object>> sink;
+
+	/**
+	 * @param sampleRate fraction of requests traced, from 0 for none to 1 for every request
+	 */
+	public FieldTracingInstrumentation(double sampleRate) {
+		if(sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1 " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param header requests carrying this header are always traced, matched ignoring case
+	 * @return this
+	 */
+	public FieldTracingInstrumentation header(String header) {
+		this.header = header;
+		return this;
+	}
+
+	/**
+	 * @param trivialFields also trace fields read straight off their parent, left out by default as they take no time
+	 * @return this
+	 */
+	public FieldTracingInstrumentation trivialFields(boolean trivialFields) {
+		this.trivialFields = trivialFields;
+		return this;
+	}
+
+	/**
+	 * @param sink given the operation name and the trace instead of adding it to the response
+	 * @return this
+	 */
+	public FieldTracingInstrumentation sink(BiConsumer<String, Map<String, Object>> sink) {
+		this.sink = sink;
+		return this;
+	}
+
+	/**
+	 * @param headers the request headers
+	 * @return if the request should be traced
+	 */
+	public boolean sample(Map<String, String> headers) {
+		if(header != null) {
+			for(var name : headers.keySet()) {
+				if(name.equalsIgnoreCase(header)) {
+					return true;
+				}
+			}
+		}
+		return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	@Override
+	public InstrumentationState createState(InstrumentationCreateStateParameters parameters) {
+		if(!PendingContext.traced(parameters.getExecutionInput().getContext())) {
+			return null;
+		}
+		return new FieldTrace();
+	}
+
+	@Override
+	public InstrumentationContext<Document> beginParse(InstrumentationExecutionParameters parameters) {
+		FieldTrace trace = parameters.getInstrumentationState();
+		if(trace == null) {
+			return super.beginParse(parameters);
+		}
+		long start = System.nanoTime();
+		return SimpleInstrumentationContext.whenCompleted((document, error) -> trace.parsing(start, System.nanoTime()));
+	}
+
+	@Override
+	public InstrumentationContext<List<ValidationError>> beginValidation(InstrumentationValidationParameters parameters) {
+		FieldTrace trace = parameters.getInstrumentationState();
+		if(trace == null) {
+			return super.beginValidation(parameters);
+		}
+		long start = System.nanoTime();
+		return SimpleInstrumentationContext.whenCompleted((errors, error) -> trace.validation(start, System.nanoTime()));
+	}
+
+	@Override
+	public InstrumentationContext<Object> beginFieldFetch(InstrumentationFieldFetchParameters parameters) {
+		FieldTrace trace = parameters.getInstrumentationState();
+		if(trace == null || (!trivialFields && parameters.isTrivialDataFetcher())) {
+			return super.beginFieldFetch(parameters);
+		}
+		var step = parameters.getEnvironment().getExecutionStepInfo();
+		long start = System.nanoTime();
+		return SimpleInstrumentationContext.whenCompleted((value, error) -> trace.field(step, start, System.nanoTime()));
+	}
+
+	@Override
+	public CompletableFuture<ExecutionResult> instrumentExecutionResult(ExecutionResult executionResult, InstrumentationExecutionParameters parameters) {
+		FieldTrace trace = parameters.getInstrumentationState();
+		if(trace == null) {
+			return CompletableFuture.completedFuture(executionResult);
+		}
+		var tracing = trace.toSpecification(System.nanoTime());
+		if(sink != null) {
+			sink.accept(parameters.getOperation(), tracing);
+			return CompletableFuture.completedFuture(executionResult);
+		}
+		Map<Object, Object> extensions = new LinkedHashMap<>();
+		if(executionResult.getExtensions() != null) {
+			extensions.putAll(executionResult.getExtensions());
+		}
+		extensions.put(EXTENSION, tracing);
+		return CompletableFuture.completedFuture(new ExecutionResultImpl(executionResult.getData(), executionResult.getErrors(), extensions));
+	}
+
+	/**
+	 * times are kept as nano offsets in arrays that grow as fields are added, maps are only built once the request ends
+	 */
+	private static class FieldTrace implements InstrumentationState {
+		private final Instant startTime = Instant.now();
+		private final long startNanos = System.nanoTime();
+		private long parseStart = -1;
+		private long parseEnd;
+		private long validationStart = -1;
+		private long validationEnd;
+		private ExecutionStepInfo[] steps = new ExecutionStepInfo[INITIAL_FIELDS];
+		private long[] starts = new long[INITIAL_FIELDS];
+		private long[] ends = new long[INITIAL_FIELDS];
+		private int size;
+
+		private synchronized void parsing(long start, long end) {
+			parseStart = start;
+			parseEnd = end;
+		}
+
+		private synchronized void validation(long start, long end) {
+			validationStart = start;
+			validationEnd = end;
+		}
+
+		private synchronized void field(ExecutionStepInfo step, long start, long end) {
+			if(size == steps.length) {
+				steps = Arrays.copyOf(steps, size * 2);
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			steps[size] = step;
+			starts[size] = start;
+			ends[size] = end;
+			size++;
+		}
+
+		private synchronized Map<String, Object> toSpecification(long endNanos) {
+			List<Map<String, Object>> resolvers = new ArrayList<>(size);
+			for(int i = 0; i < size; i++) {
+				var step = steps[i];
+				Map<String, Object> resolver = new LinkedHashMap<>();
+				resolver.put("path", step.getPath().toList());
+				resolver.put("parentType", GraphQLTypeUtil.simplePrint(step.getParent().getUnwrappedNonNullType()));
+				resolver.put("fieldName", step.getFieldDefinition().getName());
+				resolver.put("returnType", GraphQLTypeUtil.simplePrint(step.getType()));
+				resolver.put("startOffset", starts[i] - startNanos);
+				resolver.put("duration", ends[i] - starts[i]);
+				resolvers.add(resolver);
+			}
+
+			Map<String, Object> tracing = new LinkedHashMap<>();
+			tracing.put("version", 1L);
+			tracing.put("startTime", startTime.toString());
+			tracing.put("endTime", startTime.plusNanos(endNanos - startNanos).toString());
+			tracing.put("duration", endNanos - startNanos);
+			if(parseStart >= 0) {
+				tracing.put("parsing", phase(parseStart, parseEnd));
+			}
+			if(validationStart >= 0) {
+				tracing.put("validation", phase(validationStart, validationEnd));
+			}
+			tracing.put("execution", Map.of("resolvers", resolvers));
+			return tracing;
+		}
+
+		private Map<String, Object> phase(long start, long end) {
+			Map<String, Object> phase = new LinkedHashMap<>();
+			phase.put("startOffset", start - startNanos);
+			phase.put("duration", end - start);
+			return phase;
+		}
+	}
+}
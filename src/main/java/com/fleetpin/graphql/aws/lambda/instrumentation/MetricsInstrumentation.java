@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.util.List;
+
+import com.fleetpin.graphql.aws.lambda.metrics.Phase;
+import com.fleetpin.graphql.aws.lambda.metrics.RequestMetrics;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationValidationParameters;
+import graphql.language.Document;
+import graphql.validation.ValidationError;
+
+/**
+ * Times parsing, validation and execution into the {@link RequestMetrics} carried by the {@link PendingContext}.
+ * Only installed when metrics are turned on.
+ */
+public class MetricsInstrumentation extends SimpleInstrumentation {
+
+	@Override
+	public InstrumentationContext<Document> beginParse(InstrumentationExecutionParameters parameters) {
+		return timed(parameters.getExecutionInput(), Phase.PARSE);
+	}
+
+	@Override
+	public InstrumentationContext<List<ValidationError>> beginValidation(InstrumentationValidationParameters parameters) {
+		return timed(parameters.getExecutionInput(), Phase.VALIDATE);
+	}
+
+	@Override
+	public InstrumentationContext<ExecutionResult> beginExecuteOperation(InstrumentationExecuteOperationParameters parameters) {
+		return timed(parameters.getExecutionContext().getExecutionInput(), Phase.EXECUTION);
+	}
+
+	private <T> InstrumentationContext<T> timed(ExecutionInput input, Phase phase) {
+		var metrics = PendingContext.metrics(input.getContext());
+		if(metrics == RequestMetrics.NOOP) {
+			return SimpleInstrumentationContext.noOp();
+		}
+		long start = System.nanoTime();
+		return SimpleInstrumentationContext.whenCompleted((result, error) -> metrics.timeSince(phase, start));
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import com.fleetpin.graphql.aws.lambda.Deadline;
+import com.fleetpin.graphql.aws.lambda.metrics.Phase;
+import com.fleetpin.graphql.aws.lambda.metrics.RequestMetrics;
+
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.AbortExecutionException;
+import graphql.language.OperationDefinition.Operation;
+
+/**
+ * Stands in for the graphql context while the user is still being validated, so the document can be parsed and
+ * validated in the meantime. {@link DeferredContextInstrumentation} swaps in the real context just before execution.
+ */
+public class PendingContext<U, C> {
+
+	private final CompletableFuture<U> user;
+	private final Function<U, C> builder;
+	private final RequestMetrics metrics;
+	private final boolean queryOnly;
+	private final Deadline deadline;
+	private final CompletableFuture<C> context = new CompletableFuture<>();
+	private volatile boolean rejected;
+	private volatile boolean traced;
+
+	public PendingContext(CompletableFuture<U> user, Function<U, C> builder) {
+		this(user, builder, RequestMetrics.NOOP);
+	}
+
+	/**
+	 * @param metrics the request's metrics, picked up by the instrumentation that runs before the context exists
+	 */
+	public PendingContext(CompletableFuture<U> user, Function<U, C> builder, RequestMetrics metrics) {
+		this(user, builder, metrics, false);
+	}
+
+	/**
+	 * @param metrics the request's metrics, picked up by the instrumentation that runs before the context exists
+	 * @param queryOnly reject mutations and subscriptions, used for GET requests
+	 */
+	public PendingContext(CompletableFuture<U> user, Function<U, C> builder, RequestMetrics metrics, boolean queryOnly) {
+		this(user, builder, metrics, queryOnly, Deadline.NONE);
+	}
+
+	/**
+	 * @param metrics the request's metrics, picked up by the instrumentation that runs before the context exists
+	 * @param queryOnly reject mutations and subscriptions, used for GET requests
+	 * @param deadline fetches still running at the deadline are stopped by {@link DeadlineInstrumentation}
+	 */
+	public PendingContext(CompletableFuture<U> user, Function<U, C> builder, RequestMetrics metrics, boolean queryOnly, Deadline deadline) {
+		this.user = user;
+		this.builder = builder;
+		this.metrics = metrics;
+		this.queryOnly = queryOnly;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * stops operations other than queries when this context only allows queries
+	 * @param operation the operation about to run
+	 * @throws AbortExecutionException with a {@code METHOD_NOT_ALLOWED} error if the operation is not allowed
+	 */
+	public void checkOperation(Operation operation) {
+		if(queryOnly && operation != Operation.QUERY) {
+			rejected = true;
+			GraphQLError error = GraphqlErrorBuilder.newError()
+					.message("Only queries can be sent with GET")
+					.errorType(ErrorType.ExecutionAborted)
+					.extensions(Map.of("code", "METHOD_NOT_ALLOWED"))
+					.build();
+			throw new AbortExecutionException(List.of(error));
+		}
+	}
+
+	/**
+	 * @return true if the operation was stopped by {@link #checkOperation(Operation)}
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
+	/**
+	 * waits for the user and builds the context once, later calls return the same context
+	 * @return the context
+	 * @throws AbortExecutionException if the user failed to validate, the failure is left on the user future
+	 */
+	public synchronized C resolve() {
+		if(!context.isDone()) {
+			final U resolved;
+			try {
+				resolved = user.get();
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				context.completeExceptionally(e);
+				throw new AbortExecutionException(e);
+			}catch (ExecutionException e) {
+				context.completeExceptionally(e.getCause());
+				throw new AbortExecutionException(e.getCause());
+			}
+			long start = System.nanoTime();
+			try {
+				context.complete(builder.apply(resolved));
+				metrics.timeSince(Phase.BUILD_CONTEXT, start);
+			}catch (RuntimeException e) {
+				context.completeExceptionally(e);
+				throw e;
+			}
+		}
+		if(context.isCompletedExceptionally()) {
+			throw new AbortExecutionException("context failed to build");
+		}
+		return context.join();
+	}
+
+	public RequestMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param context the context graphql was given
+	 * @return the request metrics if it is a pending context, otherwise {@link RequestMetrics#NOOP}
+	 */
+	public static RequestMetrics metrics(Object context) {
+		if(context instanceof PendingContext) {
+			return ((PendingContext<?, ?>) context).metrics;
+		}
+		return RequestMetrics.NOOP;
+	}
+
+	/**
+	 * @param traced if {@link FieldTracingInstrumentation} traces the operations run with this context
+	 * @return this
+	 */
+	public PendingContext<U, C> traced(boolean traced) {
+		this.traced = traced;
+		return this;
+	}
+
+	/**
+	 * @param context the context graphql was given
+	 * @return if it is a pending context picked for tracing
+	 */
+	public static boolean traced(Object context) {
+		return context instanceof PendingContext && ((PendingContext<?, ?>) context).traced;
+	}
+
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @param context the context graphql was given
+	 * @return the request deadline if it is a pending context, otherwise {@link Deadline#NONE}
+	 */
+	public static Deadline deadline(Object context) {
+		if(context instanceof PendingContext) {
+			return ((PendingContext<?, ?>) context).deadline;
+		}
+		return Deadline.NONE;
+	}
+
+	/**
+	 * @return completes once the context is built, never if execution stopped before needing it
+	 */
+	public CompletableFuture<C> getContext() {
+		return context;
+	}
+}
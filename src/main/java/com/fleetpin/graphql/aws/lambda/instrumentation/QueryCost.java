@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+/**
+ * What a {@link QueryCostAnalyser} worked out for an operation before it ran.
+ */
+public class QueryCost {
+
+	private final int depth;
+	private final int fields;
+	private final long cost;
+
+	public QueryCost(int depth, int fields, long cost) {
+		this.depth = depth;
+		this.fields = fields;
+		this.cost = cost;
+	}
+
+	/**
+	 * @return deepest field nesting, a top level field has a depth of 1
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return number of fields selected in the document, fragments are counted where they are spread
+	 */
+	public int getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the weighted cost, each field's weight plus its children's cost times the list size it asked for
+	 */
+	public long getCost() {
+		return cost;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryCost [depth=" + depth + ", fields=" + fields + ", cost=" + cost + "]";
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import graphql.analysis.QueryTraverser;
+import graphql.analysis.QueryVisitorFieldEnvironment;
+import graphql.analysis.QueryVisitorStub;
+import graphql.language.Document;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLSchema;
+
+/**
+ * Works out how expensive an operation is from its document alone so it can be turned away before any resolver runs.
+ *
+ * A field costs its weight, 1 unless set with {@link #weight(String, String, int)}, plus the cost of its children
+ * multiplied by the list size it asked for through one of the list size arguments ({@code first}, {@code last},
+ * {@code limit} by default). A limit of 0 or less is not checked.
+ */
+public class QueryCostAnalyser {
+
+	private static final List<String> DEFAULT_LIST_SIZE_ARGUMENTS = List.of("first", "last", "limit");
+
+	private final int maxDepth;
+	private final int maxFields;
+	private final long maxCost;
+	private final Map<String, Integer> weights = new HashMap<>();
+	private List<String> listSizeArguments = DEFAULT_LIST_SIZE_ARGUMENTS;
+
+	public QueryCostAnalyser(int maxDepth, int maxFields, long maxCost) {
+		this.maxDepth = maxDepth;
+		this.maxFields = maxFields;
+		this.maxCost = maxCost;
+	}
+
+	/**
+	 * @param type the object or interface name
+	 * @param field the field on that type
+	 * @param weight the cost of selecting the field once, not counting its children
+	 * @return this
+	 */
+	public QueryCostAnalyser weight(String type, String field, int weight) {
+		weights.put(type + "." + field, weight);
+		return this;
+	}
+
+	/**
+	 * @param arguments names of the integer arguments that set how many items a list field returns
+	 * @return this
+	 */
+	public QueryCostAnalyser listSizeArguments(String... arguments) {
+		this.listSizeArguments = List.of(arguments);
+		return this;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxFields() {
+		return maxFields;
+	}
+
+	public long getMaxCost() {
+		return maxCost;
+	}
+
+	/**
+	 * @param cost from {@link #analyse}
+	 * @return if the operation is within every configured limit
+	 */
+	public boolean withinBudget(QueryCost cost) {
+		return (maxDepth <= 0 || cost.getDepth() <= maxDepth) && (maxFields <= 0 || cost.getFields() <= maxFields) && (maxCost <= 0 || cost.getCost() <= maxCost);
+	}
+
+	public QueryCost analyse(GraphQLSchema schema, Document document, String operationName, Map<String, Object> variables) {
+		var traverser = QueryTraverser.newQueryTraverser().schema(schema).document(document).operationName(operationName).variables(variables).build();
+		var visitor = new CostVisitor();
+		traverser.visitPostOrder(visitor);
+		return new QueryCost(visitor.depth, visitor.fields, visitor.childCost.getOrDefault(null, 0L));
+	}
+
+	/**
+	 * @param parentType the type the field is selected on
+	 * @param field the field selected
+	 * @return the cost of selecting the field once, not counting its children
+	 */
+	protected int fieldWeight(GraphQLFieldsContainer parentType, GraphQLFieldDefinition field) {
+		return weights.getOrDefault(parentType.getName() + "." + field.getName(), 1);
+	}
+
+	/**
+	 * @param arguments the field arguments with variables already substituted
+	 * @return how many times the children of the field are expected to be resolved
+	 */
+	protected long multiplier(Map<String, Object> arguments) {
+		for(var name : listSizeArguments) {
+			var value = arguments.get(name);
+			if(value instanceof Number) {
+				return Math.max(1, ((Number) value).longValue());
+			}
+		}
+		return 1;
+	}
+
+	private class CostVisitor extends QueryVisitorStub {
+		// keyed by the parent environment, null for the operation itself
+		private final Map<QueryVisitorFieldEnvironment, Long> childCost = new HashMap<>();
+		private int depth;
+		private int fields;
+
+		@Override
+		public void visitField(QueryVisitorFieldEnvironment env) {
+			fields++;
+			depth = Math.max(depth, depth(env));
+			if(env.isTypeNameIntrospectionField()) {
+				return;
+			}
+			long children = childCost.getOrDefault(env, 0L);
+			long cost = saturatedAdd(fieldWeight(env.getFieldsContainer(), env.getFieldDefinition()), saturatedMultiply(children, multiplier(env.getArguments())));
+			childCost.merge(env.getParentEnvironment(), cost, QueryCostAnalyser::saturatedAdd);
+		}
+
+		private int depth(QueryVisitorFieldEnvironment env) {
+			int depth = 0;
+			for(var current = env; current != null; current = current.getParentEnvironment()) {
+				depth++;
+			}
+			return depth;
+		}
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		long result = a + b;
+		return ((a ^ result) & (b ^ result)) < 0 ? Long.MAX_VALUE : result;
+	}
+
+	private static long saturatedMultiply(long a, long b) {
+		long high = Math.multiplyHigh(a, b);
+		long result = a * b;
+		return (high == 0 && result >= 0) ? result : Long.MAX_VALUE;
+	}
+}
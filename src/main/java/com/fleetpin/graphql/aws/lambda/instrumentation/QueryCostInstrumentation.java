@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import java.util.function.BiConsumer;
+
+import com.fleetpin.graphql.aws.lambda.exceptions.QueryCostExceeded;
+
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+
+/**
+ * Runs a {@link QueryCostAnalyser} on every operation just before execution, documents served from the document cache
+ * included, and aborts the operation with {@link QueryCostExceeded} when it is over budget.
+ */
+public class QueryCostInstrumentation extends SimpleInstrumentation {
+
+	private final QueryCostAnalyser analyser;
+	private final BiConsumer<String, QueryCost> reporter;
+
+	/**
+	 * @param analyser works out the cost and holds the limits
+	 * @param reporter given the operation name and its cost, rejected or not
+	 */
+	public QueryCostInstrumentation(QueryCostAnalyser analyser, BiConsumer<String, QueryCost> reporter) {
+		this.analyser = analyser;
+		this.reporter = reporter;
+	}
+
+	@Override
+	public ExecutionContext instrumentExecutionContext(ExecutionContext executionContext, InstrumentationExecutionParameters parameters) {
+		var operationName = executionContext.getOperationDefinition().getName();
+		var cost = analyser.analyse(executionContext.getGraphQLSchema(), executionContext.getDocument(), operationName, executionContext.getVariables());
+		reporter.accept(operationName, cost);
+		// the context is still pending as this runs ahead of DeferredContextInstrumentation
+		PendingContext.metrics(executionContext.getContext()).queryCost(cost);
+		if(!analyser.withinBudget(cost)) {
+			throw new QueryCostExceeded(cost, analyser);
+		}
+		return executionContext;
+	}
+}
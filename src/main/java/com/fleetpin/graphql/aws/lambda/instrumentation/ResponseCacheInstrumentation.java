@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.instrumentation;
+
+import com.fleetpin.graphql.aws.lambda.ResponseCache;
+
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+
+/**
+ * Works out the {@link ResponseCache} policy of each document the first time it is executed, the document is only
+ * available to graphql.
+ */
+public class ResponseCacheInstrumentation extends SimpleInstrumentation {
+
+	private final ResponseCache cache;
+
+	public ResponseCacheInstrumentation(ResponseCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public ExecutionContext instrumentExecutionContext(ExecutionContext executionContext, InstrumentationExecutionParameters parameters) {
+		cache.recordPolicy(executionContext);
+		return executionContext;
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.dataloader.stats.Statistics;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fleetpin.graphql.aws.lambda.CacheStats;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+
+/**
+ * Writes each request's measurements to stdout as one line of CloudWatch embedded metric format. Lambda ships stdout
+ * to CloudWatch logs which extracts the metrics, so publishing costs no api calls and works without a network.
+ * Metrics are dimensioned by operation name. Data loader batches are the round trips made by batch loaders, the batch
+ * size is the average number of keys each one loaded. Caches are written on their own lines dimensioned by cache name,
+ * with the activity since the previous request so the counts can be summed.
+ */
+public class EmfMetrics implements LambdaMetrics {
+
+	private static final String ANONYMOUS = "anonymous";
+	private static final Phase[] PHASES = Phase.values();
+
+	private final JsonFactory factory = new JsonFactory();
+	private final String namespace;
+	private final PrintStream out;
+	private final Map<String, CacheStats> reportedCaches = new ConcurrentHashMap<>();
+
+	public EmfMetrics(String namespace) {
+		this(namespace, System.out);
+	}
+
+	/**
+	 * @param namespace CloudWatch namespace the metrics are published under
+	 * @param out where the log lines are written
+	 */
+	public EmfMetrics(String namespace, PrintStream out) {
+		this.namespace = namespace;
+		this.out = out;
+	}
+
+	@Override
+	public RequestMetrics start() {
+		return new EmfRequestMetrics();
+	}
+
+	private void publish(EmfRequestMetrics metrics) {
+		var buffer = new ByteArrayOutputStream(512);
+		try (JsonGenerator generator = factory.createGenerator(buffer)) {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("_aws");
+			generator.writeNumberField("Timestamp", System.currentTimeMillis());
+			generator.writeArrayFieldStart("CloudWatchMetrics");
+			generator.writeStartObject();
+			generator.writeStringField("Namespace", namespace);
+			generator.writeArrayFieldStart("Dimensions");
+			generator.writeStartArray();
+			generator.writeString("Operation");
+			generator.writeEndArray();
+			generator.writeEndArray();
+			generator.writeArrayFieldStart("Metrics");
+			for(var phase : PHASES) {
+				if(metrics.recorded(phase)) {
+					definition(generator, phase.getMetricName(), "Milliseconds");
+				}
+			}
+			if(metrics.uncompressed >= 0) {
+				definition(generator, "ResponseBytes", "Bytes");
+				definition(generator, "SentBytes", "Bytes");
+			}
+			definition(generator, "Errors", "Count");
+			definition(generator, "Failures", "Count");
+			if(metrics.cost != null) {
+				definition(generator, "QueryCost", "Count");
+				definition(generator, "QueryDepth", "Count");
+				definition(generator, "QueryFields", "Count");
+			}
+			if(metrics.dataLoaded) {
+				definition(generator, "DataLoaderLoads", "Count");
+				definition(generator, "DataLoaderBatches", "Count");
+				definition(generator, "DataLoaderBatchSize", "Count");
+				definition(generator, "DataLoaderCacheHits", "Count");
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.writeEndArray();
+			generator.writeEndObject();
+
+			generator.writeStringField("Operation", metrics.operation == null || metrics.operation.isEmpty() ? ANONYMOUS : metrics.operation);
+			for(var phase : PHASES) {
+				if(metrics.recorded(phase)) {
+					generator.writeNumberField(phase.getMetricName(), metrics.nanos.get(phase.ordinal()) / 1_000_000d);
+				}
+			}
+			if(metrics.uncompressed >= 0) {
+				generator.writeNumberField("ResponseBytes", metrics.uncompressed);
+				generator.writeNumberField("SentBytes", metrics.sent);
+			}
+			generator.writeNumberField("Errors", metrics.errors.get());
+			generator.writeNumberField("Failures", metrics.failure ? 1 : 0);
+			if(metrics.cost != null) {
+				generator.writeNumberField("QueryCost", metrics.cost.getCost());
+				generator.writeNumberField("QueryDepth", metrics.cost.getDepth());
+				generator.writeNumberField("QueryFields", metrics.cost.getFields());
+			}
+			if(metrics.dataLoaded) {
+				long batches = metrics.batches.get();
+				generator.writeNumberField("DataLoaderLoads", metrics.loads.get());
+				generator.writeNumberField("DataLoaderBatches", batches);
+				generator.writeNumberField("DataLoaderBatchSize", batches == 0 ? 0d : metrics.batchLoads.get() / (double) batches);
+				generator.writeNumberField("DataLoaderCacheHits", metrics.cacheHits.get());
+			}
+			generator.writeEndObject();
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.write('\n');
+		if(metrics.caches != null) {
+			for(var cache : metrics.caches) {
+				var previous = reportedCaches.put(cache.getName(), cache);
+				publish(buffer, previous == null ? cache : cache.minus(previous));
+			}
+		}
+		synchronized (out) {
+			out.write(buffer.toByteArray(), 0, buffer.size());
+			out.flush();
+		}
+	}
+
+	private void publish(ByteArrayOutputStream buffer, CacheStats cache) {
+		if(cache.getHits() + cache.getMisses() + cache.getLoads() + cache.getLoadFailures() == 0) {
+			return;
+		}
+		try (JsonGenerator generator = factory.createGenerator(buffer)) {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("_aws");
+			generator.writeNumberField("Timestamp", System.currentTimeMillis());
+			generator.writeArrayFieldStart("CloudWatchMetrics");
+			generator.writeStartObject();
+			generator.writeStringField("Namespace", namespace);
+			generator.writeArrayFieldStart("Dimensions");
+			generator.writeStartArray();
+			generator.writeString("Cache");
+			generator.writeEndArray();
+			generator.writeEndArray();
+			generator.writeArrayFieldStart("Metrics");
+			definition(generator, "CacheHits", "Count");
+			definition(generator, "CacheMisses", "Count");
+			definition(generator, "CacheLoads", "Count");
+			definition(generator, "CacheLoadFailures", "Count");
+			definition(generator, "CacheLoadTime", "Milliseconds");
+			definition(generator, "CacheExpiredEvictions", "Count");
+			definition(generator, "CacheSizeEvictions", "Count");
+			definition(generator, "CacheFailureEvictions", "Count");
+			definition(generator, "CacheSize", "Count");
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.writeEndArray();
+			generator.writeEndObject();
+
+			generator.writeStringField("Cache", cache.getName());
+			generator.writeNumberField("CacheHits", cache.getHits());
+			generator.writeNumberField("CacheMisses", cache.getMisses());
+			generator.writeNumberField("CacheLoads", cache.getLoads());
+			generator.writeNumberField("CacheLoadFailures", cache.getLoadFailures());
+			generator.writeNumberField("CacheLoadTime", cache.getAverageLoadNanos() / 1_000_000d);
+			generator.writeNumberField("CacheExpiredEvictions", cache.getExpiredEvictions());
+			generator.writeNumberField("CacheSizeEvictions", cache.getSizeEvictions());
+			generator.writeNumberField("CacheFailureEvictions", cache.getFailureEvictions());
+			generator.writeNumberField("CacheSize", cache.getSize());
+			generator.writeEndObject();
+		}catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.write('\n');
+	}
+
+	private static void definition(JsonGenerator generator, String name, String unit) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("Name", name);
+		generator.writeStringField("Unit", unit);
+		generator.writeEndObject();
+	}
+
+	private class EmfRequestMetrics implements RequestMetrics {
+		private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+		private final AtomicInteger recorded = new AtomicInteger();
+		private final AtomicInteger errors = new AtomicInteger();
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private volatile String operation;
+		private volatile long uncompressed = -1;
+		private volatile long sent;
+		private volatile boolean failure;
+		private volatile QueryCost cost;
+		private final AtomicLong loads = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong batchLoads = new AtomicLong();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private volatile boolean dataLoaded;
+		private volatile List<CacheStats> caches;
+
+		@Override
+		public void operation(String name) {
+			this.operation = name;
+		}
+
+		@Override
+		public void time(Phase phase, long nanos) {
+			this.nanos.addAndGet(phase.ordinal(), nanos);
+			recorded.getAndUpdate(mask -> mask | (1 << phase.ordinal()));
+		}
+
+		private boolean recorded(Phase phase) {
+			return (recorded.get() & (1 << phase.ordinal())) != 0;
+		}
+
+		@Override
+		public void responseBytes(long uncompressed, long sent) {
+			this.sent = sent;
+			this.uncompressed = uncompressed;
+		}
+
+		@Override
+		public void errors(int count) {
+			errors.addAndGet(count);
+		}
+
+		@Override
+		public void failure() {
+			failure = true;
+		}
+
+		@Override
+		public void queryCost(QueryCost cost) {
+			this.cost = cost;
+		}
+
+		@Override
+		public void dataLoaders(Statistics statistics) {
+			loads.addAndGet(statistics.getLoadCount());
+			batches.addAndGet(statistics.getBatchInvokeCount());
+			batchLoads.addAndGet(statistics.getBatchLoadCount());
+			cacheHits.addAndGet(statistics.getCacheHitCount());
+			dataLoaded = true;
+		}
+
+		@Override
+		public void caches(List<CacheStats> caches) {
+			this.caches = caches;
+		}
+
+		@Override
+		public void close() {
+			if(closed.compareAndSet(false, true)) {
+				publish(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.metrics;
+
+/**
+ * Where request measurements are sent. Return one from {@code buildMetrics()} on the lambda to turn metrics on,
+ * {@link EmfMetrics} writes them to CloudWatch through the function's log.
+ */
+public interface LambdaMetrics {
+
+	/**
+	 * @return collects the measurements of one request, published when closed
+	 */
+	RequestMetrics start();
+}
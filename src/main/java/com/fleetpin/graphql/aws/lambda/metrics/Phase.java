@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.metrics;
+
+/**
+ * The steps a graphql request goes through, each timed separately.
+ */
+public enum Phase {
+	/** reading the query text into a document, skipped when the document cache has it */
+	PARSE("ParseTime"),
+	/** validating the document against the schema, skipped when the document cache has it */
+	VALIDATE("ValidateTime"),
+	/** validating the user's token, runs alongside parse and validate */
+	AUTH("AuthTime"),
+	/** building the graphql context once the user is known */
+	BUILD_CONTEXT("BuildContextTime"),
+	/** running the resolvers */
+	EXECUTION("ExecutionTime"),
+	/** writing the result as json, not counting compression */
+	SERIALIZATION("SerializationTime"),
+	/** compressing the json */
+	COMPRESSION("CompressionTime");
+
+	private final String metricName;
+
+	Phase(String metricName) {
+		this.metricName = metricName;
+	}
+
+	public String getMetricName() {
+		return metricName;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.metrics;
+
+import java.util.List;
+
+import org.dataloader.stats.Statistics;
+
+import com.fleetpin.graphql.aws.lambda.CacheStats;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+
+/**
+ * Collects the measurements of a single request. Measurements can arrive from any thread until {@link #close()}
+ * publishes them. Every method does nothing by default so implementations only pick what they record.
+ */
+public interface RequestMetrics extends AutoCloseable {
+
+	/**
+	 * records nothing, used when metrics are turned off
+	 */
+	RequestMetrics NOOP = new RequestMetrics() {};
+
+	/**
+	 * @param name the operation being run, null for anonymous operations
+	 */
+	default void operation(String name) {}
+
+	/**
+	 * @param phase the step that ran, a phase that runs more than once in a request adds up
+	 * @param nanos how long it took
+	 */
+	default void time(Phase phase, long nanos) {}
+
+	/**
+	 * @param phase the step that ran
+	 * @param startNanos {@link System#nanoTime()} when the step started
+	 */
+	default void timeSince(Phase phase, long startNanos) {
+		time(phase, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param uncompressed size of the json body
+	 * @param sent size of the body handed back to API gateway, after compression and base64
+	 */
+	default void responseBytes(long uncompressed, long sent) {}
+
+	/**
+	 * @param count graphql errors returned to the client
+	 */
+	default void errors(int count) {}
+
+	/**
+	 * the request failed with an internal server error
+	 */
+	default void failure() {}
+
+	/**
+	 * @param cost computed before execution, see {@link com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostAnalyser}
+	 */
+	default void queryCost(QueryCost cost) {}
+
+	/**
+	 * @param statistics of the data loaders of a context once execution is done, a batch of queries can report more than once
+	 */
+	default void dataLoaders(Statistics statistics) {}
+
+	/**
+	 * @param caches counters of every {@link com.fleetpin.graphql.aws.lambda.LambdaCache} since they were created,
+	 * reported once the request is handled
+	 */
+	default void caches(List<CacheStats> caches) {}
+
+	/**
+	 * publishes the measurements, called once the response is built
+	 */
+	@Override
+	default void close() {}
+}
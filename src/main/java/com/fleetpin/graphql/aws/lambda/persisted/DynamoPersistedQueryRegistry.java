@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.persisted;
+
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.fleetpin.graphql.aws.lambda.Constants.ID;
+import static com.fleetpin.graphql.aws.lambda.Constants.QUERY;
+
+/**
+ * Shares persisted queries between containers so a cold lambda can still answer a hash only request.
+ * The table needs a string hash key called id, queries are stored in the query attribute.
+ * Lookups are served from an in memory registry first.
+ */
+public class DynamoPersistedQueryRegistry implements PersistedQueryRegistry {
+
+    private final DynamoDbManager manager;
+    private final String table;
+    private final PersistedQueryRegistry local;
+
+    public DynamoPersistedQueryRegistry(final DynamoDbManager manager, final String table) {
+        this(manager, table, new InMemoryPersistedQueryRegistry(1000));
+    }
+
+    public DynamoPersistedQueryRegistry(final DynamoDbManager manager, final String table, final PersistedQueryRegistry local) {
+        this.manager = manager;
+        this.table = table;
+        this.local = local;
+    }
+
+    @Override
+    public CompletableFuture<String> lookup(final String hash) {
+        return local.lookup(hash).thenCompose(query -> {
+            if (query != null) {
+                return CompletableFuture.completedFuture(query);
+            }
+            return manager
+                    .getDynamoDbAsyncClient()
+                    .getItem(t -> t.tableName(table).key(key(hash)))
+                    .thenCompose(response -> {
+                        if (!response.hasItem() || !response.item().containsKey(QUERY)) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        final var found = response.item().get(QUERY).s();
+                        return local.register(hash, found).thenApply(__ -> found);
+                    });
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> register(final String hash, final String query) {
+        final Map<String, AttributeValue> item = key(hash);
+        item.put(QUERY, AttributeValue.builder().s(query).build());
+
+        return local
+                .register(hash, query)
+                .thenCompose(__ -> manager.getDynamoDbAsyncClient().putItem(t -> t.tableName(table).item(item)))
+                .thenAccept(__ -> {
+                });
+    }
+
+    private Map<String, AttributeValue> key(final String hash) {
+        final Map<String, AttributeValue> key = new HashMap<>();
+        key.put(ID, AttributeValue.builder().s(hash).build());
+        return key;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.persisted;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps persisted queries for the life of the container, least recently used queries are dropped once full.
+ * The parsed documents are kept by the {@link com.fleetpin.graphql.aws.lambda.DocumentCache} under the same hash.
+ */
+public class InMemoryPersistedQueryRegistry implements PersistedQueryRegistry {
+
+    private final Map<String, String> queries;
+
+    public InMemoryPersistedQueryRegistry(final int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive " + maximumSize);
+        }
+        this.queries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<String> lookup(final String hash) {
+        synchronized (queries) {
+            return CompletableFuture.completedFuture(queries.get(hash));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> register(final String hash, final String query) {
+        synchronized (queries) {
+            queries.put(hash, query);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+}
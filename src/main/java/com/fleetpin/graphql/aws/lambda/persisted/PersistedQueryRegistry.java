@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda.persisted;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores the query text of apollo automatic persisted queries by their sha256 hash.
+ * https://github.com/apollographql/apollo-link-persisted-queries#protocol
+ */
+public interface PersistedQueryRegistry {
+
+    /**
+     * @param hash lower case hex sha256 of the query text
+     * @return the query text or null if the hash is unknown
+     */
+    CompletableFuture<String> lookup(String hash);
+
+    /**
+     * @param hash lower case hex sha256 of the query text, already checked against the query
+     * @param query the query text
+     */
+    CompletableFuture<Void> register(String hash, String query);
+}
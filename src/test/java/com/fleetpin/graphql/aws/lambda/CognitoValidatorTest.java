@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.exceptions.TokenExpiredException;
+
+public class CognitoValidatorTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void testVerifiesFromLocalKeySet() throws Exception {
+		var key = generate();
+		var jwks = write(jwks("one", key));
+
+		var validator = new CognitoValidator(jwks.toUri().toURL());
+		var claims = validator.verify(sign("one", key));
+		assertEquals("user", claims.get("sub").asText());
+	}
+
+	@Test
+	public void testUnknownKidRefreshes() throws Exception {
+		var first = generate();
+		var second = generate();
+		var jwks = write(jwks("one", first));
+
+		var validator = new CognitoValidator(new CognitoValidator.AwsCognitoRSAKeyProvider(jwks.toUri().toURL(), Duration.ofHours(1), Duration.ZERO));
+		validator.verify(sign("one", first));
+
+		// keys rotated after the validator fetched them
+		Files.writeString(jwks, "{\"keys\": [" + jwk("one", first) + "," + jwk("two", second) + "]}");
+		assertEquals("user", validator.verify(sign("two", second)).get("sub").asText());
+	}
+
+	@Test
+	public void testUnknownKidRefreshRateLimited() throws Exception {
+		var first = generate();
+		var second = generate();
+		var jwks = write(jwks("one", first));
+
+		var validator = new CognitoValidator(new CognitoValidator.AwsCognitoRSAKeyProvider(jwks.toUri().toURL(), Duration.ofHours(1), Duration.ofHours(1)));
+		Files.writeString(jwks, "{\"keys\": [" + jwk("one", first) + "," + jwk("two", second) + "]}");
+
+		// fetched at construction, so the new key is not seen until the interval passes
+		assertThrows(RuntimeException.class, () -> validator.verify(sign("two", second)));
+		assertEquals("user", validator.verify(sign("one", first)).get("sub").asText());
+	}
+
+	@Test
+	public void testConcurrentFetchesShareOne() throws Exception {
+		var key = generate();
+		var fetches = new AtomicInteger();
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var jwks = new URL(null, "test:jwks", new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(URL url) {
+				return new URLConnection(url) {
+					@Override
+					public void connect() {}
+
+					@Override
+					public InputStream getInputStream() throws IOException {
+						fetches.incrementAndGet();
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						return new ByteArrayInputStream(jwks("one", key).getBytes(StandardCharsets.UTF_8));
+					}
+				};
+			}
+		});
+		var provider = new CognitoValidator.AwsCognitoRSAKeyProvider(jwks, Duration.ofHours(1), Duration.ZERO);
+
+		var first = CompletableFuture.supplyAsync(() -> provider.getPublicKeyById("one"));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		var second = CompletableFuture.supplyAsync(() -> provider.getPublicKeyById("one"));
+		// the lock is not held while fetching, so a refresh joins the running fetch instead of blocking on it
+		var refresh = CompletableFuture.runAsync(provider::refresh);
+		Thread.sleep(100);
+		assertFalse(second.isDone());
+		release.countDown();
+
+		assertEquals(key.getPublic(), first.get(5, TimeUnit.SECONDS));
+		assertEquals(key.getPublic(), second.get(5, TimeUnit.SECONDS));
+		refresh.get(5, TimeUnit.SECONDS);
+		assertEquals(1, fetches.get());
+	}
+
+	@Test
+	public void testClaimsCached() throws Exception {
+		var key = generate();
+		var validator = new CognitoValidator(write(jwks("one", key)).toUri().toURL());
+		assertNull(validator.getClaimsStats());
+		validator.cacheClaims(100, Duration.ofHours(1));
+
+		var token = sign("one", key);
+		var claims = validator.verify(token);
+		assertSame(claims, validator.verify(token));
+		assertEquals(0.5, validator.getClaimsStats().getHitRate(), 0.0001);
+
+		// a forged signature is not a cache hit
+		assertThrows(RuntimeException.class, () -> validator.verify(token.substring(0, token.lastIndexOf('.') + 1) + "AAAA"));
+	}
+
+	@Test
+	public void testCachedClaimsExpire() throws Exception {
+		var key = generate();
+		var validator = new CognitoValidator(write(jwks("one", key)).toUri().toURL()).cacheClaims(100, Duration.ofHours(1));
+
+		var token = JWT.create()
+				.withKeyId("one")
+				.withSubject("user")
+				.withExpiresAt(Date.from(Instant.now().plusSeconds(1)))
+				.sign(Algorithm.RSA256((RSAPublicKey) key.getPublic(), (RSAPrivateKey) key.getPrivate()));
+		validator.verify(token);
+		Thread.sleep(2_100);
+		assertThrows(TokenExpiredException.class, () -> validator.verify(token));
+		assertEquals(1, validator.getClaimsStats().getHits());
+	}
+
+	private Path write(String content) throws IOException {
+		return Files.writeString(dir.resolve("jwks.json"), content);
+	}
+
+	private static KeyPair generate() throws NoSuchAlgorithmException {
+		var generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+
+	private static String sign(String kid, KeyPair key) {
+		return JWT.create().withKeyId(kid).withSubject("user").sign(Algorithm.RSA256((RSAPublicKey) key.getPublic(), (RSAPrivateKey) key.getPrivate()));
+	}
+
+	private static String jwks(String kid, KeyPair key) {
+		return "{\"keys\": [" + jwk(kid, key) + "]}";
+	}
+
+	private static String jwk(String kid, KeyPair key) {
+		var encoder = Base64.getUrlEncoder().withoutPadding();
+		var publicKey = (RSAPublicKey) key.getPublic();
+		return "{\"kty\": \"RSA\", \"kid\": \"" + kid + "\", \"alg\": \"RS256\", \"use\": \"sig\", \"n\": \"" + encoder.encodeToString(publicKey.getModulus().toByteArray())
+				+ "\", \"e\": \"" + encoder.encodeToString(publicKey.getPublicExponent().toByteArray()) + "\"}";
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+import com.fleetpin.graphql.builder.SchemaBuilder;
+
+import graphql.GraphQL;
+
+public class DocumentCacheTest {
+
+	private static final String QUERY = "subscription example {allExamples{name}}";
+
+	@Test
+	public void testReusesDocument() throws ReflectiveOperationException {
+		var cache = new DocumentCache(10);
+		var graph = build(cache);
+
+		assertEquals("allExamples", graph.execute(QUERY).getData());
+		assertEquals("allExamples", graph.execute(QUERY).getData());
+
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testSkipsInvalidDocuments() throws ReflectiveOperationException {
+		var cache = new DocumentCache(10);
+		var graph = build(cache);
+
+		var result = graph.execute("subscription example {allExamples{missing}}");
+		assertFalse(result.getErrors().isEmpty());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testBounded() throws ReflectiveOperationException {
+		var cache = new DocumentCache(1);
+		var graph = build(cache);
+
+		graph.execute(QUERY);
+		graph.execute("subscription other {allExamples{name}}");
+		graph.execute(QUERY);
+
+		assertEquals(1, cache.size());
+		assertEquals(3, cache.getMisses());
+		assertEquals(Collections.emptyList(), graph.execute(QUERY).getErrors());
+		assertEquals(1, cache.getHits());
+	}
+
+	private GraphQL build(DocumentCache cache) throws ReflectiveOperationException {
+		return SchemaBuilder.build("com.fleetpin.graphql.aws.lambda.model")
+				.subscriptionExecutionStrategy(new InterceptExecutionStrategy())
+				.preparsedDocumentProvider(cache)
+				.build();
+	}
+}
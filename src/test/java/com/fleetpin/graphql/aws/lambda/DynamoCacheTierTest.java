@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+import com.fleetpin.graphql.database.manager.test.annotations.TestDatabase;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeDefinition;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.CreateTableRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeySchemaElement;
+import software.amazon.awssdk.services.dynamodb.model.KeyType;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughput;
+
+public class DynamoCacheTierTest {
+
+	@TestDatabase
+	public void testSharedBetweenContainers(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		createTable(manager);
+		var first = new AtomicInteger();
+		var second = new AtomicInteger();
+
+		var loaded = tier(manager, 1, Duration.ofHours(1)).loader(source(first, "value")).apply("key").get();
+		assertEquals("value", loaded);
+
+		var shared = tier(manager, 1, Duration.ofHours(1)).loader(source(second, "other")).apply("key").get();
+		assertEquals("value", shared);
+		assertEquals(1, first.get());
+		assertEquals(0, second.get());
+	}
+
+	@TestDatabase
+	public void testOtherVersionIgnored(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		createTable(manager);
+		var loads = new AtomicInteger();
+
+		tier(manager, 1, Duration.ofHours(1)).loader(source(loads, "old")).apply("key").get();
+		var loaded = tier(manager, 2, Duration.ofHours(1)).loader(source(loads, "new")).apply("key").get();
+		assertEquals("new", loaded);
+		assertEquals(2, loads.get());
+	}
+
+	@TestDatabase
+	public void testExpiredIgnored(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		createTable(manager);
+		var loads = new AtomicInteger();
+
+		tier(manager, 1, Duration.ZERO).loader(source(loads, "first")).apply("key").get();
+		var loaded = tier(manager, 1, Duration.ZERO).loader(source(loads, "second")).apply("key").get();
+		assertEquals("second", loaded);
+		assertEquals(2, loads.get());
+	}
+
+	@TestDatabase
+	public void testConcurrentLoadsShareOne(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		createTable(manager);
+		var loads = new AtomicInteger();
+		var pending = new CompletableFuture<String>();
+		var loader = tier(manager, 1, Duration.ofHours(1)).loader(key -> {
+			loads.incrementAndGet();
+			return pending;
+		});
+
+		var first = loader.apply("key");
+		var second = loader.apply("key");
+		assertSame(first, second);
+		pending.complete("value");
+		assertEquals("value", first.get());
+		assertEquals(1, loads.get());
+
+		// finished loads are no longer shared
+		assertEquals("value", loader.apply("key").get());
+		assertEquals(1, loads.get());
+	}
+
+	@TestDatabase
+	public void testNullNotShared(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		createTable(manager);
+		var loads = new AtomicInteger();
+
+		assertNull(tier(manager, 1, Duration.ofHours(1)).loader(source(loads, null)).apply("key").get());
+		var loaded = tier(manager, 1, Duration.ofHours(1)).loader(source(loads, "value")).apply("key").get();
+		assertEquals("value", loaded);
+		assertEquals(2, loads.get());
+	}
+
+	private static Function<String, CompletableFuture<String>> source(AtomicInteger loads, String value) {
+		return key -> {
+			loads.incrementAndGet();
+			return CompletableFuture.completedFuture(value);
+		};
+	}
+
+	private static DynamoCacheTier<String> tier(DynamoDbManager manager, int version, Duration ttl) {
+		return new DynamoCacheTier<>(manager, "cache", "test", ttl, new DynamoCacheTier.Codec<>() {
+			@Override
+			public int version() {
+				return version;
+			}
+
+			@Override
+			public AttributeValue encode(String value) {
+				return AttributeValue.builder().s(value).build();
+			}
+
+			@Override
+			public String decode(AttributeValue value) {
+				return value.s();
+			}
+		});
+	}
+
+	private static void createTable(final DynamoDbManager manager) throws ExecutionException, InterruptedException {
+		var request = CreateTableRequest
+				.builder()
+				.tableName("cache")
+				.keySchema(List.of(KeySchemaElement.builder().attributeName("id").keyType(KeyType.HASH).build()))
+				.attributeDefinitions(List.of(AttributeDefinition.builder().attributeName("id").attributeType("S").build()))
+				.provisionedThroughput(ProvisionedThroughput.builder().readCapacityUnits(5L).writeCapacityUnits(5L).build())
+				.build();
+
+		manager.getDynamoDbAsyncClient().createTable(request).get();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+import com.fleetpin.graphql.aws.lambda.metrics.EmfMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.Phase;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+
+public class EmfMetricsTest {
+
+	@Test
+	public void testWritesEmbeddedMetricFormat() throws Exception {
+		var out = new ByteArrayOutputStream();
+		var metrics = new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8)).start();
+
+		metrics.operation("getUser");
+		metrics.time(Phase.PARSE, 1_500_000);
+		metrics.time(Phase.EXECUTION, 2_000_000);
+		metrics.time(Phase.EXECUTION, 1_000_000);
+		metrics.responseBytes(2048, 512);
+		metrics.errors(2);
+		metrics.queryCost(new QueryCost(3, 7, 42));
+		metrics.close();
+		metrics.close();
+
+		var text = out.toString(StandardCharsets.UTF_8);
+		assertTrue(text.endsWith("\n"));
+		assertEquals(1, text.split("\n").length);
+
+		var line = SchemaBuilder.MAPPER.readTree(text);
+		JSONAssert.assertEquals("{\"Operation\": \"getUser\", \"ParseTime\": 1.5, \"ExecutionTime\": 3.0, \"ResponseBytes\": 2048, \"SentBytes\": 512, \"Errors\": 2, \"Failures\": 0, \"QueryCost\": 42, \"QueryDepth\": 3, \"QueryFields\": 7}", line.toString(), false);
+
+		var directive = line.get("_aws").get("CloudWatchMetrics").get(0);
+		assertEquals("graphql", directive.get("Namespace").asText());
+		assertEquals("Operation", directive.get("Dimensions").get(0).get(0).asText());
+		var names = names(directive.get("Metrics"));
+		assertTrue(names.contains("ParseTime"));
+		assertFalse(names.contains("ValidateTime"));
+		for(var name : names) {
+			assertTrue(line.has(name), name);
+		}
+	}
+
+	@Test
+	public void testCachesReportActivitySincePreviousRequest() throws Exception {
+		var out = new ByteArrayOutputStream();
+		var emf = new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8));
+
+		var metrics = emf.start();
+		metrics.caches(List.of(new CacheStats("users", 5, 2, 2, 0, 4_000_000, 0, 0, 0, 2), new CacheStats("idle", 0, 0, 0, 0, 0, 0, 0, 0, 0)));
+		metrics.close();
+		var lines = out.toString(StandardCharsets.UTF_8).split("\n");
+		assertEquals(2, lines.length);
+		var line = SchemaBuilder.MAPPER.readTree(lines[1]);
+		JSONAssert.assertEquals("{\"Cache\": \"users\", \"CacheHits\": 5, \"CacheMisses\": 2, \"CacheLoads\": 2, \"CacheLoadTime\": 2.0, \"CacheSize\": 2}", line.toString(), false);
+		assertEquals("Cache", line.get("_aws").get("CloudWatchMetrics").get(0).get("Dimensions").get(0).get(0).asText());
+
+		out.reset();
+		metrics = emf.start();
+		metrics.caches(List.of(new CacheStats("users", 8, 3, 3, 0, 5_000_000, 1, 0, 0, 2)));
+		metrics.close();
+		lines = out.toString(StandardCharsets.UTF_8).split("\n");
+		line = SchemaBuilder.MAPPER.readTree(lines[1]);
+		JSONAssert.assertEquals("{\"CacheHits\": 3, \"CacheMisses\": 1, \"CacheLoads\": 1, \"CacheLoadTime\": 1.0, \"CacheExpiredEvictions\": 1}", line.toString(), false);
+	}
+
+	@Test
+	public void testAnonymousOperation() throws Exception {
+		var out = new ByteArrayOutputStream();
+		var metrics = new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8)).start();
+		metrics.failure();
+		metrics.close();
+
+		var line = SchemaBuilder.MAPPER.readTree(out.toString(StandardCharsets.UTF_8));
+		assertEquals("anonymous", line.get("Operation").asText());
+		assertEquals(1, line.get("Failures").asInt());
+		assertFalse(line.has("ResponseBytes"));
+	}
+
+	private List<String> names(JsonNode metrics) {
+		var names = new ArrayList<String>();
+		metrics.forEach(metric -> names.add(metric.get("Name").asText()));
+		return names;
+	}
+}
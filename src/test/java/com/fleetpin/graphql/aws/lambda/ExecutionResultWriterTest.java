@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import graphql.ExecutionResultImpl;
+import graphql.GraphqlErrorBuilder;
+import org.junit.jupiter.api.Test;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ExecutionResultWriterTest {
+
+    private final ExecutionResultWriter writer = new ExecutionResultWriter(SchemaBuilder.MAPPER);
+
+    @Test
+    void matchesMapperWithoutErrors() throws Exception {
+        final var result = ExecutionResultImpl.newExecutionResult()
+                .data(Map.of("assets", List.of(Map.of("name", "truck", "id", 5))))
+                .addExtension("cost", 3)
+                .build();
+
+        final var expected = (ObjectNode) SchemaBuilder.MAPPER.valueToTree(result);
+        expected.remove(Constants.GRAPHQL_ERRORS_FIELD);
+
+        final var written = write(result);
+        assertFalse(written.contains(Constants.GRAPHQL_ERRORS_FIELD));
+        JSONAssert.assertEquals(expected.toString(), written, true);
+    }
+
+    @Test
+    void matchesMapperWithErrors() throws Exception {
+        final var result = ExecutionResultImpl.newExecutionResult()
+                .data(null)
+                .addError(GraphqlErrorBuilder.newError().message("broken").build())
+                .build();
+
+        final var expected = SchemaBuilder.MAPPER.valueToTree(result).toString();
+
+        JSONAssert.assertEquals(expected, write(result), true);
+    }
+
+    private String write(final graphql.ExecutionResult result) throws Exception {
+        final var out = new ByteArrayOutputStream();
+        writer.write(result, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fleetpin.graphql.aws.lambda.admin.User;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+
+import graphql.GraphQL;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+public class LambdaAdminSourceTest {
+
+	private final AtomicInteger managers = new AtomicInteger();
+	private final AtomicInteger primed = new AtomicInteger();
+	private String region;
+
+	@BeforeEach
+	public void region() {
+		// the gateway client is built up front and needs a region, it never connects
+		region = System.setProperty("aws.region", "us-east-1");
+	}
+
+	@AfterEach
+	public void restoreRegion() {
+		if (region == null) {
+			System.clearProperty("aws.region");
+		} else {
+			System.setProperty("aws.region", region);
+		}
+	}
+
+	@Test
+	public void testCheckpointAndRestore() throws Exception {
+		var source = new TestSource();
+		var admin = source.getAdmin();
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<String, Integer>(Duration.ofHours(1), key -> loads.incrementAndGet());
+		cache.get("key");
+
+		source.beforeCheckpoint(null);
+		assertEquals(1, primed.get());
+		assertEquals(1, cache.get("key"));
+
+		source.afterRestore(null);
+		assertEquals(2, managers.get());
+		assertNotSame(admin, source.getAdmin());
+		assertEquals(2, cache.get("key"));
+	}
+
+	private class TestSource extends LambdaAdminSource<User, String> {
+
+		public TestSource() throws Exception {
+			super("subscriptions", "https://gateway.example.com");
+		}
+
+		@Override
+		protected GraphQL.Builder buildGraphQL() throws Exception {
+			return SchemaBuilder.build("com.fleetpin.graphql.aws.lambda.model");
+		}
+
+		@Override
+		protected DynamoDbManager builderManager() {
+			managers.incrementAndGet();
+			return DynamoDbManager.builder().tables("table").dynamoDbAsyncClient(mock(DynamoDbAsyncClient.class)).build();
+		}
+
+		@Override
+		protected void prime() {
+			primed.incrementAndGet();
+			super.prime();
+		}
+
+		@Override
+		public Void handleRequest(String input, Context context) {
+			return null;
+		}
+	}
+}
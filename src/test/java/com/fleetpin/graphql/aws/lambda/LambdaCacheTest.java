@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class LambdaCacheTest {
+
+	@Test
+	public void testUnboundedByDefault() {
+		var cache = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> key);
+		for(int i = 0; i < 1000; i++) {
+			cache.get(i);
+		}
+		assertEquals(1000, cache.size());
+	}
+
+	@Test
+	public void testMaximumSize() {
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> {
+			loads.incrementAndGet();
+			return key;
+		}).maximumSize(10);
+		for(int i = 0; i < 100; i++) {
+			cache.get(i);
+		}
+		assertEquals(10, cache.size());
+		cache.get(99);
+		assertEquals(100, loads.get());
+		cache.get(0);
+		assertEquals(101, loads.get());
+	}
+
+	@Test
+	public void testFrequentEntriesSurviveScan() {
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> {
+			loads.incrementAndGet();
+			return key;
+		}).maximumSize(10);
+		for(int i = 0; i < 5; i++) {
+			cache.get(i);
+			cache.get(i);
+		}
+		// keys seen once only push each other out of probation
+		for(int i = 100; i < 200; i++) {
+			cache.get(i);
+		}
+		loads.set(0);
+		for(int i = 0; i < 5; i++) {
+			cache.get(i);
+		}
+		assertEquals(0, loads.get());
+		assertEquals(10, cache.size());
+	}
+
+	@Test
+	public void testMaximumWeight() {
+		var cache = new LambdaCache<String, String>(Duration.ofHours(1), key -> key).maximumWeight(10, (key, value) -> value.length());
+		cache.get("aaaa");
+		cache.get("bbbb");
+		assertEquals(2, cache.size());
+		cache.get("cccc");
+		assertEquals(2, cache.size());
+		cache.get("dddddddddddd");
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testExpiredEntriesReloadOnRead() {
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<String, Integer>(Duration.ZERO, key -> loads.incrementAndGet());
+		assertEquals(1, cache.get("key"));
+		assertEquals(2, cache.get("key"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testEvictDropsOnlyExpired() {
+		var expiring = new LambdaCache<Integer, Integer>(Duration.ZERO, key -> key).maximumSize(100);
+		var live = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> key);
+		for(int i = 0; i < 10; i++) {
+			expiring.get(i);
+			live.get(i);
+		}
+		LambdaCache.evict();
+		assertEquals(0, expiring.size());
+		assertEquals(10, live.size());
+		expiring.get(1);
+		assertEquals(1, expiring.size());
+	}
+
+	@Test
+	public void testRejectsInvalidLimits() {
+		var cache = new LambdaCache<String, String>(Duration.ofHours(1), key -> key);
+		assertThrows(IllegalArgumentException.class, () -> cache.maximumSize(0));
+		assertThrows(IllegalArgumentException.class, () -> cache.maximumWeight(-1, (key, value) -> 1));
+	}
+
+	@Test
+	public void testResetDropsBoundedEntries() {
+		var cache = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> key).maximumSize(2);
+		cache.get(1);
+		cache.get(1);
+		cache.get(2);
+		LambdaCache.reset();
+		assertEquals(0, cache.size());
+		cache.get(3);
+		cache.get(4);
+		cache.get(5);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testRefreshServesCurrentValue() {
+		var loads = new AtomicInteger();
+		var reload = new CompletableFuture<Integer>();
+		var cache = new LambdaCache<String, CompletableFuture<Integer>>(Duration.ofHours(1), key -> {
+			if(loads.incrementAndGet() == 1) {
+				return CompletableFuture.completedFuture(1);
+			}
+			return reload;
+		}).refreshAfterWrite(Duration.ZERO, Runnable::run);
+
+		assertEquals(1, cache.get("a").join());
+		// reload started in the background, the current value is still served
+		assertEquals(1, cache.get("a").join());
+		assertEquals(1, cache.get("a").join());
+		assertEquals(2, loads.get());
+
+		reload.complete(2);
+		assertEquals(2, cache.get("a").join());
+	}
+
+	@Test
+	public void testFailedRefreshKeepsValue() {
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<String, CompletableFuture<Integer>>(Duration.ofHours(1), key -> {
+			if(loads.incrementAndGet() == 1) {
+				return CompletableFuture.completedFuture(1);
+			}
+			return CompletableFuture.failedFuture(new RuntimeException("down"));
+		}).refreshAfterWrite(Duration.ZERO, Runnable::run);
+
+		assertEquals(1, cache.get("a").join());
+		assertEquals(1, cache.get("a").join());
+		assertEquals(1, cache.get("a").join());
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testFailuresDroppedImmediately() {
+		var loads = new AtomicInteger();
+		var pending = new CompletableFuture<Integer>();
+		var cache = new LambdaCache<String, CompletableFuture<Integer>>(Duration.ofHours(1), key -> {
+			if(loads.incrementAndGet() == 1) {
+				return pending;
+			}
+			return CompletableFuture.completedFuture(2);
+		}).failureTTL(Duration.ZERO);
+
+		assertTrue(cache.get("a") == pending);
+		pending.completeExceptionally(new RuntimeException("down"));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.get("a").join());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testNegativeResultsExpireSooner() throws InterruptedException {
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<Integer, CompletableFuture<Integer>>(Duration.ofHours(1), key -> {
+			loads.incrementAndGet();
+			return CompletableFuture.completedFuture(key);
+		}).negativeTTL(Duration.ofMillis(1), future -> future.join() < 0);
+
+		cache.get(1);
+		cache.get(-1);
+		Thread.sleep(5);
+		LambdaCache.evict();
+		assertEquals(1, cache.size());
+		cache.get(1);
+		cache.get(-1);
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testStats() {
+		var cache = new LambdaCache<Integer, CompletableFuture<Integer>>(Duration.ofHours(1), key -> {
+			if(key < 0) {
+				return CompletableFuture.failedFuture(new RuntimeException("down"));
+			}
+			return CompletableFuture.completedFuture(key);
+		}).name("testStats").maximumSize(2).failureTTL(Duration.ZERO);
+
+		cache.get(-1);
+		cache.get(1);
+		cache.get(1);
+		cache.get(2);
+		cache.get(3);
+
+		var stats = cache.getStats();
+		assertEquals("testStats", stats.getName());
+		assertEquals(1, stats.getHits());
+		assertEquals(4, stats.getMisses());
+		assertEquals(3, stats.getLoads());
+		assertEquals(1, stats.getLoadFailures());
+		assertEquals(1, stats.getFailureEvictions());
+		assertEquals(1, stats.getSizeEvictions());
+		assertEquals(2, stats.getSize());
+		assertEquals(0.2, stats.getHitRate(), 0.0001);
+
+		var registered = LambdaCache.stats().stream().filter(s -> s.getName().equals("testStats")).findAny().orElseThrow();
+		assertEquals(1, registered.getHits());
+	}
+
+	@Test
+	public void testGetAllBatchesMissingKeys() {
+		var batches = new ArrayList<Set<Integer>>();
+		var singles = new AtomicInteger();
+		var cache = new LambdaCache<Integer, Integer>(Duration.ofHours(1), key -> {
+			singles.incrementAndGet();
+			return key;
+		}).batchLoader(keys -> {
+			batches.add(Set.copyOf(keys));
+			var loaded = new HashMap<Integer, Integer>();
+			for(var key : keys) {
+				// leaves out 4 so it falls back to the single loader
+				if(key != 4) {
+					loaded.put(key, key * 10);
+				}
+			}
+			return loaded;
+		});
+
+		cache.get(1);
+		var values = cache.getAll(List.of(1, 2, 3, 2, 4));
+		assertEquals(Map.of(1, 1, 2, 20, 3, 30, 4, 4), values);
+		assertEquals(List.of(Set.of(2, 3, 4)), batches);
+		assertEquals(2, singles.get());
+
+		assertEquals(Map.of(2, 20, 3, 30), cache.getAll(List.of(2, 3)));
+		assertEquals(1, batches.size());
+		assertEquals(4, cache.getStats().getMisses());
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.google.common.io.ByteStreams;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQL;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class LambdaGraphQLStreamTest {
+    @Mock(lenient = true)
+    private GraphQL graphQL;
+    private String body;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        when(graphQL.executeAsync(any(UnaryOperator.class))).thenReturn(
+                CompletableFuture.completedFuture(ExecutionResultImpl.newExecutionResult().data(Map.of("name", "a \"quoted\" name")).build())
+        );
+        body = new String(ByteStreams.toByteArray(ClassLoader.getSystemResourceAsStream("simple_graphql_request.json")), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void plainResponse() throws Exception {
+        final var response = invoke(new StreamHandler(graphQL, false), Map.of("Authorization", "token"));
+
+        assertEquals(200, response.get("statusCode").asInt());
+        assertFalse(response.get("isBase64Encoded").asBoolean());
+        assertEquals("application/json; charset=utf-8", response.get("headers").get("Content-Type").asText());
+        JSONAssert.assertEquals("{\"data\": {\"name\": \"a \\\"quoted\\\" name\"}}", response.get("body").asText(), false);
+    }
+
+    @Test
+    void gzippedResponse() throws Exception {
+        final var response = invoke(new StreamHandler(graphQL, true), Map.of("Authorization", "token", "Accept-Encoding", "gzip"));
+
+        assertEquals(200, response.get("statusCode").asInt());
+        assertTrue(response.get("isBase64Encoded").asBoolean());
+        assertEquals("gzip", response.get("headers").get("Content-Encoding").asText());
+
+        try (var gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(response.get("body").asText())))) {
+            JSONAssert.assertEquals("{\"data\": {\"name\": \"a \\\"quoted\\\" name\"}}", new String(gzip.readAllBytes(), StandardCharsets.UTF_8), false);
+        }
+    }
+
+    private JsonNode invoke(final StreamHandler handler, final Map<String, String> headers) throws IOException {
+        final var event = SchemaBuilder.MAPPER.createObjectNode();
+        event.put("resource", "/graphql");
+        event.put("httpMethod", "POST");
+        event.set("headers", SchemaBuilder.MAPPER.valueToTree(headers));
+        event.putObject("requestContext").put("requestId", "1").putObject("identity").put("sourceIp", "127.0.0.1");
+        event.put("body", body);
+        event.put("isBase64Encoded", false);
+
+        final var output = new ByteArrayOutputStream();
+        handler.handleRequest(new ByteArrayInputStream(SchemaBuilder.MAPPER.writeValueAsBytes(event)), output, null);
+        return SchemaBuilder.MAPPER.readTree(output.toByteArray());
+    }
+
+    private static class StreamHandler extends LambdaGraphQLStream<String, NoopGraphQLContext> {
+        private final boolean gzip;
+
+        StreamHandler(final GraphQL graphQL, final boolean gzip) {
+            super(graphQL);
+            this.gzip = gzip;
+        }
+
+        @Override
+        public boolean enableGzipCompression() {
+            return gzip;
+        }
+
+        @Override
+        protected int compressionMinimumSize() {
+            return 0;
+        }
+
+        @Override
+        protected GraphQL buildGraphQL() {
+            return null;
+        }
+
+        @Override
+        protected CompletableFuture<String> validate(final String authHeader) {
+            return CompletableFuture.completedFuture(authHeader);
+        }
+
+        @Override
+        protected NoopGraphQLContext buildContext(final String user, final GraphQLQuery query) {
+            return new NoopGraphQLContext();
+        }
+    }
+
+    private static class NoopGraphQLContext implements ContextGraphQL {
+        @Override
+        public void start(final CompletionStage<?> complete) {
+        }
+    }
+}
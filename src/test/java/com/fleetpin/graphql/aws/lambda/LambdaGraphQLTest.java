@@ -3,11 +3,23 @@ package com.fleetpin.graphql.aws.lambda;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2ProxyRequestEvent;
 import com.fleetpin.graphql.aws.lambda.admin.User;
 import com.fleetpin.graphql.aws.lambda.exceptions.AccessDeniedError;
+import com.fleetpin.graphql.aws.lambda.instrumentation.FieldTracingInstrumentation;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostAnalyser;
+import com.fleetpin.graphql.aws.lambda.metrics.EmfMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.LambdaMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.Phase;
+import com.fleetpin.graphql.aws.lambda.persisted.InMemoryPersistedQueryRegistry;
+import com.fleetpin.graphql.aws.lambda.persisted.PersistedQueryRegistry;
+import com.fleetpin.graphql.builder.SchemaBuilder;
 import com.google.common.io.ByteStreams;
 
+import graphql.ExecutionInput;
 import graphql.ExecutionResultImpl;
 import graphql.GraphQL;
+import graphql.cachecontrol.CacheControl;
 import org.apache.commons.codec.binary.Base64;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -15,26 +27,41 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.skyscreamer.jsonassert.JSONAssert;
 import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static com.google.common.net.HttpHeaders.CONTENT_ENCODING;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -111,6 +138,533 @@ class LambdaGraphQLTest {
 
     }
 
+    @Test
+    void persistedQueryNotFound() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(persistedQueryBody(null, DocumentCache.hash("{ name }")));
+        input.setHeaders(Map.of("Authorization", token));
+        final var authorizedHandler = new AuthorizedGraphHandler(graphQL);
+
+        final var response = authorizedHandler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals("{\"errors\":[{\"message\":\"PersistedQueryNotFound\"}]}", response.getBody(), false);
+        verify(graphQL, never()).executeAsync(any(UnaryOperator.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void persistedQueryRegistered() throws Exception {
+        final var query = "{ name }";
+        final var hash = DocumentCache.hash(query);
+        final var authorizedHandler = new AuthorizedGraphHandler(graphQL);
+
+        final var register = new APIGatewayV2ProxyRequestEvent();
+        register.setBody(persistedQueryBody(query, hash));
+        register.setHeaders(Map.of("Authorization", token));
+        assertEquals(200, authorizedHandler.handleRequest(register, null).getStatusCode());
+
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(persistedQueryBody(null, hash));
+        input.setHeaders(Map.of("Authorization", token));
+        final var response = authorizedHandler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        final ArgumentCaptor<UnaryOperator<ExecutionInput.Builder>> captor = ArgumentCaptor.forClass(UnaryOperator.class);
+        verify(graphQL, times(2)).executeAsync(captor.capture());
+        assertEquals(query, captor.getValue().apply(ExecutionInput.newExecutionInput()).build().getQuery());
+    }
+
+    @Test
+    void persistedQueryNotRegisteredWhenRejected() throws Exception {
+        final var allowed = new AtomicBoolean();
+        final var handler = new SchemaGraphHandler(null) {
+            @Override
+            protected CompletableFuture<User> validate(final String authHeader) {
+                return allowed.get() ? CompletableFuture.completedFuture(null) : CompletableFuture.failedFuture(new AccessDeniedError());
+            }
+        };
+        final var valid = "{example{name}}";
+        final var invalid = "{missing}";
+
+        final var denied = new APIGatewayV2ProxyRequestEvent();
+        denied.setBody(persistedQueryBody(valid, DocumentCache.hash(valid)));
+        JSONAssert.assertEquals("{\"errors\":[{\"message\":\"AccessDeniedError\"}]}", handler.handleRequest(denied, null).getBody(), false);
+
+        allowed.set(true);
+        final var broken = new APIGatewayV2ProxyRequestEvent();
+        broken.setBody(persistedQueryBody(invalid, DocumentCache.hash(invalid)));
+        final var errors = SchemaBuilder.MAPPER.readTree(handler.handleRequest(broken, null).getBody()).get("errors");
+        assertTrue(errors.get(0).get("message").asText().startsWith("Validation error"));
+
+        for (final var query : List.of(valid, invalid)) {
+            final var lookup = new APIGatewayV2ProxyRequestEvent();
+            lookup.setBody(persistedQueryBody(null, DocumentCache.hash(query)));
+            JSONAssert.assertEquals("{\"errors\":[{\"message\":\"PersistedQueryNotFound\"}]}", handler.handleRequest(lookup, null).getBody(), false);
+        }
+
+        final var register = new APIGatewayV2ProxyRequestEvent();
+        register.setBody(persistedQueryBody(valid, DocumentCache.hash(valid)));
+        handler.handleRequest(register, null);
+        final var lookup = new APIGatewayV2ProxyRequestEvent();
+        lookup.setBody(persistedQueryBody(null, DocumentCache.hash(valid)));
+        JSONAssert.assertEquals("{\"data\":{\"example\":{\"name\":\"example\"}}}", handler.handleRequest(lookup, null).getBody(), false);
+    }
+
+    @Test
+    void persistedQueryRegistrationDoesNotHoldResponse() throws Exception {
+        final var registering = new CompletableFuture<Void>();
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected PersistedQueryRegistry buildPersistedQueryRegistry() {
+                return new InMemoryPersistedQueryRegistry(10) {
+                    @Override
+                    public CompletableFuture<Void> register(final String hash, final String query) {
+                        return registering;
+                    }
+                };
+            }
+        };
+        final var query = "{example{name}}";
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(persistedQueryBody(query, DocumentCache.hash(query)));
+
+        JSONAssert.assertEquals("{\"data\":{\"example\":{\"name\":\"example\"}}}", handler.handleRequest(input, null).getBody(), false);
+
+        // a failed write is only logged, the query still answers
+        registering.completeExceptionally(new IllegalStateException("unavailable"));
+        JSONAssert.assertEquals("{\"data\":{\"example\":{\"name\":\"example\"}}}", handler.handleRequest(input, null).getBody(), false);
+    }
+
+    @Test
+    void persistedQueryHashMismatch() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(persistedQueryBody("{ name }", DocumentCache.hash("{ other }")));
+        input.setHeaders(Map.of("Authorization", token));
+        final var authorizedHandler = new AuthorizedGraphHandler(graphQL);
+
+        final var response = authorizedHandler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals("{\"errors\":[{\"message\":\"provided sha does not match query\"}]}", response.getBody(), false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void batchedQueries() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("[" + body + ", " + persistedQueryBody(null, DocumentCache.hash("{ name }")) + ", " + body + "]");
+        input.setHeaders(Map.of("Authorization", token));
+        final var authorizedHandler = new AuthorizedGraphHandler(graphQL);
+
+        final var response = authorizedHandler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        final var results = SchemaBuilder.MAPPER.readTree(response.getBody());
+        assertEquals(3, results.size());
+        JSONAssert.assertEquals(readResourceAsString("simple_graphql_response.json"), results.get(0).toString(), true);
+        assertEquals("PersistedQueryNotFound", results.get(1).get("errors").get(0).get("message").asText());
+        JSONAssert.assertEquals(readResourceAsString("simple_graphql_response.json"), results.get(2).toString(), true);
+        verify(graphQL, times(2)).executeAsync(any(UnaryOperator.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void batchTooLarge() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("[" + String.join(",", Collections.nCopies(11, body)) + "]");
+        input.setHeaders(Map.of("Authorization", token));
+        final var authorizedHandler = new AuthorizedGraphHandler(graphQL);
+
+        final var response = authorizedHandler.handleRequest(input, null);
+
+        assertEquals(400, response.getStatusCode());
+        verify(graphQL, never()).executeAsync(any(UnaryOperator.class));
+    }
+
+    @Test
+    void contextBuiltOnceUserValidated() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"subscription example {allExamples{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var user = new CompletableFuture<User>();
+        final var handler = new SchemaGraphHandler(user);
+
+        CompletableFuture.runAsync(() -> user.complete(null), CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS));
+        final var response = handler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals("{\"data\": \"allExamples\"}", response.getBody(), false);
+        assertEquals(1, handler.contexts.get());
+        assertTrue(handler.started.isDone());
+    }
+
+    @Test
+    void accessDeniedWinsOverValidationErrors() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"subscription example {allExamples{missing}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var handler = new SchemaGraphHandler(CompletableFuture.failedFuture(new AccessDeniedError()));
+
+        final var response = handler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals(readResourceAsString("access_denied_response.json"), response.getBody(), true);
+        assertEquals(0, handler.contexts.get());
+    }
+
+    @Test
+    void accessDeniedStopsExecution() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"subscription example {allExamples{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var handler = new SchemaGraphHandler(CompletableFuture.failedFuture(new AccessDeniedError()));
+
+        final var response = handler.handleRequest(input, null);
+
+        JSONAssert.assertEquals(readResourceAsString("access_denied_response.json"), response.getBody(), true);
+        assertEquals(0, handler.contexts.get());
+        assertFalse(handler.started.isDone());
+    }
+
+    @Test
+    void expensiveQueryRejected() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"subscription example {allExamples{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected QueryCostAnalyser buildQueryCostAnalyser() {
+                return new QueryCostAnalyser(1, 0, 0);
+            }
+        };
+
+        final var response = handler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals("{\"errors\":[{\"message\":\"Query exceeds the allowed cost\", \"extensions\": {\"code\": \"QUERY_TOO_EXPENSIVE\", \"depth\": 2, \"maxDepth\": 1}}], \"data\": null}", response.getBody(), false);
+        assertEquals(0, handler.contexts.get());
+    }
+
+    @Test
+    void metricsPublished() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"subscription example {allExamples{name}}\", \"operationName\": \"example\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var out = new ByteArrayOutputStream();
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected LambdaMetrics buildMetrics() {
+                return new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            protected QueryCostAnalyser buildQueryCostAnalyser() {
+                return new QueryCostAnalyser(0, 0, 0);
+            }
+        };
+
+        handler.handleRequest(input, null);
+
+        final var line = SchemaBuilder.MAPPER.readTree(out.toString(StandardCharsets.UTF_8));
+        assertEquals("example", line.get("Operation").asText());
+        for (final var phase : List.of(Phase.PARSE, Phase.VALIDATE, Phase.AUTH, Phase.BUILD_CONTEXT, Phase.EXECUTION, Phase.SERIALIZATION)) {
+            assertTrue(line.has(phase.getMetricName()), phase.name());
+        }
+        assertEquals(0, line.get("Errors").asInt());
+        assertEquals(2, line.get("QueryCost").asInt());
+        assertTrue(line.get("ResponseBytes").asInt() > 0);
+    }
+
+    @Test
+    void dataLoadersBatched() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"{examples{name loaded}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var out = new ByteArrayOutputStream();
+        final var batches = new AtomicInteger();
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected LambdaMetrics buildMetrics() {
+                return new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            protected ContextGraphQL buildContext(final User user, final GraphQLQuery query) {
+                final var registry = new DataLoaderRegistry();
+                registry.register("loaded", DataLoader.<String, String>newDataLoader(keys -> {
+                    batches.incrementAndGet();
+                    return CompletableFuture.supplyAsync(() -> keys.stream().map(key -> key + "!").collect(Collectors.toList()));
+                }));
+                return new NoopGraphQLContext() {
+                    @Override
+                    public DataLoaderRegistry getDataLoaderRegistry() {
+                        return registry;
+                    }
+                };
+            }
+        };
+
+        final var response = handler.handleRequest(input, null);
+
+        JSONAssert.assertEquals("{\"data\": {\"examples\": [{\"name\": \"a\", \"loaded\": \"a!\"}, {\"name\": \"b\", \"loaded\": \"b!\"}, {\"name\": \"c\", \"loaded\": \"c!\"}]}, \"extensions\": null}", response.getBody(), false);
+        assertEquals(1, batches.get());
+        final var line = SchemaBuilder.MAPPER.readTree(out.toString(StandardCharsets.UTF_8));
+        assertEquals(3, line.get("DataLoaderLoads").asInt());
+        assertEquals(1, line.get("DataLoaderBatches").asInt());
+        assertEquals(3, line.get("DataLoaderBatchSize").asInt());
+    }
+
+    @Test
+    void fieldTracingSampledByHeader() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"{example{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected FieldTracingInstrumentation buildFieldTracing() {
+                return new FieldTracingInstrumentation(0).header("X-Trace");
+            }
+        };
+
+        final var untraced = SchemaBuilder.MAPPER.readTree(handler.handleRequest(input, null).getBody());
+        assertTrue(untraced.path("extensions").path("tracing").isMissingNode());
+
+        input.setHeaders(Map.of("Authorization", token, "x-trace", "1"));
+        final var traced = SchemaBuilder.MAPPER.readTree(handler.handleRequest(input, null).getBody());
+        final var tracing = traced.get("extensions").get("tracing");
+        assertEquals(1, tracing.get("version").asInt());
+        assertTrue(tracing.get("duration").asLong() > 0);
+        final var resolver = tracing.get("execution").get("resolvers").get(0);
+        assertEquals("example", resolver.get("fieldName").asText());
+        assertEquals("Query", resolver.get("parentType").asText());
+        assertEquals("example", resolver.get("path").get(0).asText());
+        assertTrue(resolver.get("startOffset").asLong() > 0);
+        JSONAssert.assertEquals("{\"data\": {\"example\": {\"name\": \"example\"}}}", traced.toString(), false);
+    }
+
+    @Test
+    void cachedResponse() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"{example{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var cache = new ResponseCache(10).hint("Query", "example", 60, CacheControl.Scope.PUBLIC);
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected ResponseCache buildResponseCache() {
+                return cache;
+            }
+        };
+
+        final var first = handler.handleRequest(input, null);
+        input.setBody("{\"query\": \"{ example { name } }\"}");
+        final var second = handler.handleRequest(input, null);
+
+        JSONAssert.assertEquals("{\"data\": {\"example\": {\"name\": \"example\"}}}", first.getBody(), false);
+        assertEquals(first.getBody(), second.getBody());
+        assertEquals(1, handler.contexts.get());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    void privateResponseNeedsUser() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody("{\"query\": \"{example{name}}\"}");
+        input.setHeaders(Map.of("Authorization", token));
+        final var cache = new ResponseCache(10).hint("Query", "example", 60, CacheControl.Scope.PRIVATE);
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected ResponseCache buildResponseCache() {
+                return cache;
+            }
+        };
+
+        handler.handleRequest(input, null);
+        handler.handleRequest(input, null);
+
+        assertEquals(2, handler.contexts.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void getQuery() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setHttpMethod("GET");
+        input.setQueryStringParameters(Map.of("query", "query named {example{name}}", "operationName", "named", "variables", "{\"x\": \"y\"}"));
+        input.setHeaders(Map.of("Authorization", token));
+        final var cache = new ResponseCache(10).hint("Query", "example", 60, CacheControl.Scope.PUBLIC);
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected ResponseCache buildResponseCache() {
+                return cache;
+            }
+        };
+
+        final var first = handler.handleRequest(input, null);
+        final var etag = first.getHeaders().get("ETag");
+
+        assertEquals(200, first.getStatusCode());
+        JSONAssert.assertEquals("{\"data\": {\"example\": {\"name\": \"example\"}}}", first.getBody(), false);
+        assertTrue(etag.matches("\"[0-9a-f]{64}\""));
+        assertEquals("public, max-age=60", first.getHeaders().get("Cache-Control"));
+        assertEquals("Accept-Encoding", first.getHeaders().get("Vary"));
+
+        input.setHeaders(Map.of("Authorization", token, "if-none-match", "W/\"other\", " + etag));
+        final var second = handler.handleRequest(input, null);
+
+        assertEquals(304, second.getStatusCode());
+        assertEquals("", second.getBody());
+        assertEquals(etag, second.getHeaders().get("ETag"));
+        assertEquals(1, handler.contexts.get());
+    }
+
+    @Test
+    void getErrorsNotStored() throws Exception {
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null));
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setHttpMethod("GET");
+        input.setHeaders(Map.of("Authorization", token));
+
+        input.setQueryStringParameters(Collections.emptyMap());
+        final var missing = handler.handleRequest(input, null);
+        assertEquals(400, missing.getStatusCode());
+        assertEquals("no-store", missing.getHeaders().get("Cache-Control"));
+
+        input.setQueryStringParameters(Map.of("extensions", "{\"persistedQuery\": {\"version\": 1, \"sha256Hash\": \"" + DocumentCache.hash("{example{name}}") + "\"}}"));
+        final var notFound = handler.handleRequest(input, null);
+        JSONAssert.assertEquals("{\"errors\":[{\"message\":\"PersistedQueryNotFound\"}]}", notFound.getBody(), false);
+        assertEquals("no-store", notFound.getHeaders().get("Cache-Control"));
+    }
+
+    @Test
+    void deadlineReturnsPartialData() throws Exception {
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null));
+
+        final var response = handler.handle("POST", "{\"query\": \"{example{name} slowExample{name}}\"}", null,
+                Map.of("Authorization", token), Deadline.after(Duration.ofMillis(100)));
+
+        assertEquals(200, response.getStatusCode());
+        JSONAssert.assertEquals("{\"data\": {\"example\": {\"name\": \"example\"}, \"slowExample\": null}, "
+                + "\"errors\": [{\"path\": [\"slowExample\"], \"extensions\": {\"code\": \"DEADLINE_EXCEEDED\"}}]}", response.getBodyAsString(), false);
+    }
+
+    @Test
+    void getOnlyRunsQueries() throws Exception {
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setHttpMethod("GET");
+        input.setQueryStringParameters(Map.of("query", "subscription {allExamples{name}}"));
+        input.setHeaders(Map.of("Authorization", token));
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null));
+
+        final var response = handler.handleRequest(input, null);
+
+        assertEquals(405, response.getStatusCode());
+        JSONAssert.assertEquals("{\"errors\": [{\"extensions\": {\"code\": \"METHOD_NOT_ALLOWED\"}}]}", response.getBody(), false);
+        assertEquals(0, handler.contexts.get());
+
+        input.setQueryStringParameters(Collections.emptyMap());
+        assertEquals(400, handler.handleRequest(input, null).getStatusCode());
+    }
+
+    @Test
+    void primedOnStartAndKeepWarm() throws Exception {
+        final var primed = new AtomicInteger();
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected List<GraphQLQuery> warmupQueries() {
+                return List.of(new GraphQLQuery(null, "{example{name}}", Collections.emptyMap()));
+            }
+
+            @Override
+            protected ContextGraphQL buildWarmupContext(final GraphQLQuery query) {
+                primed.incrementAndGet();
+                return null;
+            }
+        };
+        assertEquals(1, primed.get());
+        assertEquals(0, handler.contexts.get());
+
+        final var response = handler.handleRequest(new APIGatewayV2ProxyRequestEvent(), null);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, primed.get());
+        assertEquals(0, handler.contexts.get());
+    }
+
+    @Test
+    void checkpointAndRestore() throws Exception {
+        final var primed = new AtomicInteger();
+        final var registries = new AtomicInteger();
+        final var handler = new SchemaGraphHandler(CompletableFuture.completedFuture(null)) {
+            @Override
+            protected List<GraphQLQuery> warmupQueries() {
+                primed.incrementAndGet();
+                return List.of(new GraphQLQuery(null, "{example{name}}", Collections.emptyMap()));
+            }
+
+            @Override
+            protected PersistedQueryRegistry buildPersistedQueryRegistry() {
+                registries.incrementAndGet();
+                return super.buildPersistedQueryRegistry();
+            }
+        };
+        final var loads = new AtomicInteger();
+        final var cache = new LambdaCache<String, Integer>(Duration.ofHours(1), key -> loads.incrementAndGet());
+        cache.get("key");
+
+        handler.beforeCheckpoint(null);
+        assertEquals(2, primed.get());
+        assertEquals(1, cache.get("key"));
+
+        handler.afterRestore(null);
+        assertEquals(2, cache.get("key"));
+        assertEquals(2, registries.get());
+    }
+
+    private static String persistedQueryBody(final String query, final String hash) {
+        final var queryField = query == null ? "" : "\"query\": \"" + query + "\", ";
+        return "{" + queryField + "\"extensions\": {\"persistedQuery\": {\"version\": 1, \"sha256Hash\": \"" + hash + "\"}}}";
+    }
+
+    @Test
+    void deflatedResponse() throws Exception {
+        final var expectedBody = readResourceAsString("simple_graphql_response.json");
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(body);
+        input.setHeaders(Map.of("Authorization", token, "Accept-Encoding", "gzip;q=0, deflate"));
+        final var randomGraphHandler = new GZipEnabledGraphQLHander(graphQL);
+
+        final var response = randomGraphHandler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals("deflate", response.getHeaders().get(CONTENT_ENCODING));
+        assertTrue(response.isIsBase64Encoded());
+
+        try (final var inflater = new InflaterInputStream(new ByteArrayInputStream(Base64.decodeBase64(response.getBody())))) {
+            JSONAssert.assertEquals(expectedBody, new String(inflater.readAllBytes(), StandardCharsets.UTF_8), true);
+        }
+    }
+
+    @Test
+    void smallResponseNotCompressed() throws Exception {
+        final var expectedBody = readResourceAsString("simple_graphql_response.json");
+        final var input = new APIGatewayV2ProxyRequestEvent();
+        input.setBody(body);
+        input.setHeaders(Map.of("Authorization", token, "Accept-Encoding", "gzip"));
+        final var handler = new GZipEnabledGraphQLHander(graphQL) {
+            @Override
+            protected int compressionMinimumSize() {
+                return 1024;
+            }
+        };
+
+        final var response = handler.handleRequest(input, null);
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, response.getHeaders().size());
+        JSONAssert.assertEquals(expectedBody, response.getBody(), true);
+    }
+
     private static Stream<Arguments> acceptEncodingHeader() {
         return Stream.of(
             Arguments.of("accept-encoding", "gzip"),
@@ -154,6 +708,11 @@ class LambdaGraphQLTest {
         @Override
         public boolean enableGzipCompression() { return true; }
 
+        @Override
+        protected int compressionMinimumSize() {
+            return 0;
+        }
+
         @Override
         protected GraphQL buildGraphQL() {
             return graphQL;
@@ -238,6 +797,34 @@ class LambdaGraphQLTest {
         }
     }
 
+    private static class SchemaGraphHandler extends LambdaGraphQL<User, ContextGraphQL> {
+        private final CompletableFuture<User> validateFuture;
+        final AtomicInteger contexts = new AtomicInteger();
+        final CompletableFuture<Void> started = new CompletableFuture<>();
+
+        public SchemaGraphHandler(final CompletableFuture<User> validateFuture) throws Exception {
+            this.validateFuture = validateFuture;
+        }
+
+        @Override
+        protected GraphQL buildGraphQL() throws Exception {
+            return SchemaBuilder.build("com.fleetpin.graphql.aws.lambda.model")
+                    .subscriptionExecutionStrategy(new InterceptExecutionStrategy())
+                    .build();
+        }
+
+        @Override
+        protected CompletableFuture<User> validate(final String authHeader) {
+            return validateFuture;
+        }
+
+        @Override
+        protected ContextGraphQL buildContext(final User user, final GraphQLQuery query) {
+            contexts.incrementAndGet();
+            return complete -> complete.thenRun(() -> started.complete(null));
+        }
+    }
+
     private static class NoopGraphQLContext implements ContextGraphQL {
         @Override
         public void start(final CompletionStage<?> complete) {
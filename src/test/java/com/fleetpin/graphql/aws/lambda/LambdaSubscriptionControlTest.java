@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.fleetpin.graphql.aws.lambda.admin.User;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+
+import graphql.GraphQL;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+
+public class LambdaSubscriptionControlTest {
+
+	private final AtomicInteger managers = new AtomicInteger();
+	private final AtomicInteger primed = new AtomicInteger();
+
+	@Test
+	public void testCheckpointAndRestore() throws Exception {
+		var control = new TestControl();
+		assertEquals(1, primed.get());
+		var loads = new AtomicInteger();
+		var cache = new LambdaCache<String, Integer>(Duration.ofHours(1), key -> loads.incrementAndGet());
+		cache.get("key");
+
+		control.beforeCheckpoint(null);
+		assertEquals(2, primed.get());
+		assertEquals(1, cache.get("key"));
+
+		control.afterRestore(null);
+		assertEquals(2, managers.get());
+		assertEquals(2, cache.get("key"));
+	}
+
+	private class TestControl extends LambdaSubscriptionControl<User> {
+
+		public TestControl() throws Exception {
+			super("subscriptions", null);
+		}
+
+		@Override
+		protected void prepare() {}
+
+		@Override
+		protected GraphQL.Builder buildGraphQL() throws Exception {
+			return SchemaBuilder.build("com.fleetpin.graphql.aws.lambda.model");
+		}
+
+		@Override
+		protected DynamoDbManager builderManager() {
+			managers.incrementAndGet();
+			return DynamoDbManager.builder().tables("table").dynamoDbAsyncClient(mock(DynamoDbAsyncClient.class)).build();
+		}
+
+		@Override
+		protected List<GraphQLQuery> warmupQueries() {
+			primed.incrementAndGet();
+			return List.of();
+		}
+
+		@Override
+		public CompletableFuture<User> validateUser(String authHeader) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String buildSubscriptionId(String subscription, Map<String, Object> variables) {
+			return subscription;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fleetpin.graphql.aws.lambda.metrics.EmfMetrics;
+import com.fleetpin.graphql.aws.lambda.metrics.LambdaMetrics;
+import com.fleetpin.graphql.builder.SchemaBuilder;
+import com.fleetpin.graphql.database.manager.dynamo.DynamoDbManager;
+
+import graphql.GraphQL;
+import io.reactivex.rxjava3.core.Flowable;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+
+public class LambdaSubscriptionSourceTest {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final DynamoDbAsyncClient client = mock(DynamoDbAsyncClient.class);
+	private final AtomicInteger managers = new AtomicInteger();
+	private final AtomicInteger primed = new AtomicInteger();
+
+	@Test
+	public void testPublishesCacheStats() throws Exception {
+		when(client.query(any(Consumer.class))).thenReturn(CompletableFuture.completedFuture(QueryResponse.builder().items(List.of()).build()));
+		var source = new TestSource();
+		var before = subscriptions();
+
+		source.process("organisation").get();
+
+		var lines = lines();
+		assertEquals("subscription", lines.get("anonymous").get("Operation").asText());
+		assertEquals(0, lines.get("anonymous").get("Failures").asInt());
+		assertEquals(before.getMisses() + 1, lines.get("subscriptions").get("CacheMisses").asLong());
+		assertEquals(before.getLoads() + 1, lines.get("subscriptions").get("CacheLoads").asLong());
+	}
+
+	@Test
+	public void testPublishesFailures() throws Exception {
+		when(client.query(any(Consumer.class))).thenReturn(CompletableFuture.failedFuture(new IllegalStateException("unavailable")));
+		var source = new TestSource();
+		var before = subscriptions();
+
+		assertThrows(ExecutionException.class, () -> source.process("organisation").get());
+
+		var lines = lines();
+		assertEquals(1, lines.get("anonymous").get("Failures").asInt());
+		assertEquals(before.getLoadFailures() + 1, lines.get("subscriptions").get("CacheLoadFailures").asLong());
+	}
+
+	@Test
+	public void testCheckpointAndRestore() throws Exception {
+		when(client.query(any(Consumer.class))).thenReturn(CompletableFuture.completedFuture(QueryResponse.builder().items(List.of()).build()));
+		var source = new TestSource();
+		source.process("organisation").get();
+
+		source.beforeCheckpoint(null);
+		assertEquals(2, primed.get());
+		source.process("organisation").get();
+		verify(client, times(1)).query(any(Consumer.class));
+
+		// subscriptions looked up through the old clients are dropped along with them
+		source.afterRestore(null);
+		assertEquals(2, managers.get());
+		source.process("organisation").get();
+		verify(client, times(2)).query(any(Consumer.class));
+	}
+
+	/**
+	 * caches sharing a name are reported together, so counts are checked against the sources of other tests
+	 */
+	private CacheStats subscriptions() {
+		return LambdaCache.stats().stream().filter(stats -> stats.getName().equals("subscriptions")).findFirst().orElseThrow();
+	}
+
+	/**
+	 * @return the published lines by cache name, the request line under anonymous
+	 */
+	private Map<String, JsonNode> lines() throws Exception {
+		Map<String, JsonNode> lines = new HashMap<>();
+		for (var text : out.toString(StandardCharsets.UTF_8).split("\n")) {
+			var line = SchemaBuilder.MAPPER.readTree(text);
+			lines.put(line.has("Cache") ? line.get("Cache").asText() : "anonymous", line);
+		}
+		return lines;
+	}
+
+	private class TestSource extends LambdaSubscriptionSource<String, String> {
+
+		public TestSource() throws Exception {
+			super("test", "subscriptions", null, Duration.ofMinutes(1), Duration.ofMinutes(1));
+		}
+
+		@Override
+		protected void prepare() {}
+
+		@Override
+		protected GraphQL buildGraphQL() {
+			return mock(GraphQL.class);
+		}
+
+		@Override
+		protected List<GraphQLQuery> warmupQueries() {
+			primed.incrementAndGet();
+			return List.of();
+		}
+
+		@Override
+		protected DynamoDbManager builderManager() {
+			managers.incrementAndGet();
+			return DynamoDbManager.builder().tables("table").dynamoDbAsyncClient(client).build();
+		}
+
+		@Override
+		protected LambdaMetrics buildMetrics() {
+			return new EmfMetrics("graphql", new PrintStream(out, true, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public CompletableFuture<ContextGraphQL> buildContext(Flowable<String> publisher, String userId, AttributeValue additionalUserInfo, Map<String, Object> variables) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String buildSubscriptionId(String type) {
+			return type;
+		}
+
+		@Override
+		public Void handleRequest(String input, Context context) {
+			process(input).join();
+			return null;
+		}
+	}
+}
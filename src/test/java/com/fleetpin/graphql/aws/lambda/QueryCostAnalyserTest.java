@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCost;
+import com.fleetpin.graphql.aws.lambda.instrumentation.QueryCostAnalyser;
+
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.UnExecutableSchemaGenerator;
+
+public class QueryCostAnalyserTest {
+
+	private static final GraphQLSchema SCHEMA = UnExecutableSchemaGenerator.makeUnExecutableSchema(new SchemaParser().parse(
+			"type Query { users(first: Int): [User] user(id: ID): User }"
+			+ " type User { name: String friends(first: Int): [User] }"));
+
+	@Test
+	public void testCountsFieldsAndDepth() {
+		var cost = analyse(new QueryCostAnalyser(0, 0, 0), "{ user(id: 1) { name friends { name } } }", Collections.emptyMap());
+		assertEquals(3, cost.getDepth());
+		assertEquals(4, cost.getFields());
+		assertEquals(4, cost.getCost());
+	}
+
+	@Test
+	public void testListSizeMultiplies() {
+		var cost = analyse(new QueryCostAnalyser(0, 0, 0), "query list($size: Int) { users(first: $size) { name friends(first: 5) { name } } }", Map.of("size", 10));
+		// users 1 + 10 * (name 1 + friends (1 + 5 * name 1))
+		assertEquals(71, cost.getCost());
+	}
+
+	@Test
+	public void testWeights() {
+		var analyser = new QueryCostAnalyser(0, 0, 0).weight("User", "friends", 20);
+		var cost = analyse(analyser, "{ user { friends { name } } }", Collections.emptyMap());
+		assertEquals(22, cost.getCost());
+	}
+
+	@Test
+	public void testFragmentsCounted() {
+		var cost = analyse(new QueryCostAnalyser(0, 0, 0), "{ user { ...details } } fragment details on User { name friends { name } }", Collections.emptyMap());
+		assertEquals(4, cost.getFields());
+		assertEquals(3, cost.getDepth());
+	}
+
+	@Test
+	public void testBudget() {
+		var analyser = new QueryCostAnalyser(3, 10, 50);
+		assertTrue(analyser.withinBudget(new QueryCost(3, 10, 50)));
+		assertFalse(analyser.withinBudget(new QueryCost(4, 1, 1)));
+		assertFalse(analyser.withinBudget(new QueryCost(1, 11, 1)));
+		assertFalse(analyser.withinBudget(new QueryCost(1, 1, 51)));
+		assertTrue(new QueryCostAnalyser(0, 0, 0).withinBudget(new QueryCost(100, 100, Long.MAX_VALUE)));
+	}
+
+	private QueryCost analyse(QueryCostAnalyser analyser, String query, Map<String, Object> variables) {
+		return analyser.analyse(SCHEMA, new Parser().parseDocument(query), null, variables);
+	}
+}
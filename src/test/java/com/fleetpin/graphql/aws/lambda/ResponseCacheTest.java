@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fleetpin.graphql.aws.lambda.instrumentation.ResponseCacheInstrumentation;
+
+import graphql.ExecutionInput;
+import graphql.GraphQL;
+import graphql.cachecontrol.CacheControl.Scope;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.UnExecutableSchemaGenerator;
+
+public class ResponseCacheTest {
+
+	private static final String SDL = "directive @cacheControl(maxAge: Int, scope: CacheControlScope) on FIELD_DEFINITION | OBJECT"
+			+ " enum CacheControlScope { PUBLIC PRIVATE }"
+			+ " type Query { users: [User] @cacheControl(maxAge: 60) me: User @cacheControl(maxAge: 30, scope: PRIVATE) other: Other }"
+			+ " type Mutation { rename(name: String): User @cacheControl(maxAge: 60) }"
+			+ " type User @cacheControl(maxAge: 120) { name: String friends: [User] secret: String @cacheControl(maxAge: 10) }"
+			+ " type Other { name: String }";
+
+	@Test
+	public void testNormalize() {
+		assertEquals("{user(id:1){name friends{name}}}", ResponseCache.normalize("{\n  user(id: 1) {\n    name, # the name\n    friends { name }\n  }\n}"));
+		assertEquals("query a($b:Int){c(d:\"x,  # y\")}", ResponseCache.normalize("query a($b: Int) { c(d: \"x,  # y\") }"));
+		assertEquals("{a(b:\"\"\" keep ,\n \"\"\")}", ResponseCache.normalize("{ a(b: \"\"\" keep ,\n \"\"\") }"));
+		var cache = new ResponseCache(10);
+		assertEquals(cache.documentKey("{ a }", null), cache.documentKey("{a}", null));
+		assertNotEquals(cache.documentKey("{ a }", null), cache.documentKey("{ a }", "op"));
+	}
+
+	@Test
+	public void testPolicyMinimumAcrossFields() {
+		var cache = new ResponseCache(10);
+		assertEquals(60, policy(cache, "{ users { name } }").getMaxAge());
+		assertEquals(10, policy(cache, "{ users { name secret } }").getMaxAge());
+		var me = policy(cache, "{ me { name } }");
+		assertEquals(30, me.getMaxAge());
+		assertEquals(Scope.PRIVATE, me.getScope());
+	}
+
+	@Test
+	public void testPolicyDefaults() {
+		var cache = new ResponseCache(10);
+		assertFalse(policy(cache, "{ other { name } }").isCacheable());
+		assertFalse(policy(cache, "mutation { rename(name: \"a\") { name } }").isCacheable());
+
+		var withDefault = new ResponseCache(10).defaultMaxAge(5);
+		assertEquals(5, policy(withDefault, "{ other { name } }").getMaxAge());
+
+		var hinted = new ResponseCache(10).hint("Query", "other", 20, Scope.PUBLIC);
+		assertEquals(20, policy(hinted, "{ other { name } }").getMaxAge());
+	}
+
+	@Test
+	public void testPolicyCountsConditionalFields() {
+		var cache = new ResponseCache(10);
+		var query = "query q($private: Boolean!, $public: Boolean!) { users { name } me @include(if: $private) { name } ... @skip(if: $public) { users { secret } } }";
+		// the first request leaves out the private field, a later one with other variables must not reuse a public policy
+		var policy = policy(cache, query, Map.of("private", false, "public", true));
+		assertEquals(Scope.PRIVATE, policy.getScope());
+		assertEquals(10, policy.getMaxAge());
+	}
+
+	@Test
+	public void testStoresPerEncodingUntilExpired() {
+		var now = new long[] {0};
+		var clock = new Clock() {
+			@Override
+			public Instant instant() {
+				return Instant.ofEpochMilli(now[0]);
+			}
+
+			@Override
+			public ZoneOffset getZone() {
+				return ZoneOffset.UTC;
+			}
+
+			@Override
+			public Clock withZone(java.time.ZoneId zone) {
+				return this;
+			}
+		};
+		var cache = new ResponseCache(10, clock);
+		var query = "{ users { name } }";
+		policy(cache, query);
+		var documentKey = cache.documentKey(query, null);
+		var key = cache.responseKey(documentKey, Map.of("b", 1, "a", 2), null);
+		assertEquals(key, cache.responseKey(documentKey, Map.of("a", 2, "b", 1), null));
+		assertNotEquals(key, cache.responseKey(documentKey, Map.of("a", 2, "b", 1), "user"));
+
+		var response = new GraphQLResponse(200, Constants.GRAPHQL_RESPONSE_HEADERS, "{\"data\":{}}");
+		cache.put(documentKey, key, null, response);
+
+		var cached = cache.get(key, null);
+		assertEquals(response.getBodyAsString(), cached.getBodyAsString());
+		assertNull(cache.get(key, ResponseCompressor.Encoding.GZIP));
+		assertSame(cached, cache.get(key, null));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		now[0] = 60_000;
+		assertNull(cache.get(key, null));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testMutationNeverStored() {
+		var cache = new ResponseCache(10);
+		var query = "mutation { rename(name: \"a\") { name } }";
+		policy(cache, query);
+		var documentKey = cache.documentKey(query, null);
+		var key = cache.responseKey(documentKey, Collections.emptyMap(), null);
+		cache.put(documentKey, key, null, new GraphQLResponse(200, Constants.GRAPHQL_RESPONSE_HEADERS, "{}"));
+		assertNull(cache.get(key, null));
+		assertTrue(cache.size() == 0);
+	}
+
+	private ResponseCache.CachePolicy policy(ResponseCache cache, String query) {
+		return policy(cache, query, Collections.emptyMap());
+	}
+
+	private ResponseCache.CachePolicy policy(ResponseCache cache, String query, Map<String, Object> variables) {
+		var schema = UnExecutableSchemaGenerator.makeUnExecutableSchema(new SchemaParser().parse(SDL));
+		var graph = GraphQL.newGraphQL(schema).instrumentation(new ResponseCacheInstrumentation(cache)).build();
+		var result = graph.execute(ExecutionInput.newExecutionInput(query).variables(variables));
+		assertEquals(Collections.emptyList(), result.getErrors());
+		return cache.policy(cache.documentKey(query, null));
+	}
+}
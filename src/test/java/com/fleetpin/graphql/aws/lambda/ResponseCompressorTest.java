@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class ResponseCompressorTest {
+
+	@Test
+	public void testGzipReusesDeflater() throws IOException {
+		var compressor = new ResponseCompressor(Deflater.DEFAULT_COMPRESSION, 16);
+		for(int i = 0; i < 3; i++) {
+			var data = data(100_000 + i);
+			var out = new ByteArrayOutputStream();
+			var stream = compressor.compress(ResponseCompressor.Encoding.GZIP, out);
+			stream.write(data, 0, 10);
+			stream.write(data, 10, data.length - 10);
+			stream.close();
+			assertTrue(stream.isCompressed());
+			assertArrayEquals(data, new GZIPInputStream(decode(out)).readAllBytes());
+		}
+	}
+
+	@Test
+	public void testDeflate() throws IOException {
+		var compressor = new ResponseCompressor(1, 16);
+		var data = data(5000);
+		var out = new ByteArrayOutputStream();
+		var stream = compressor.compress(ResponseCompressor.Encoding.DEFLATE, out);
+		stream.write(data);
+		stream.close();
+		assertTrue(stream.isCompressed());
+		assertArrayEquals(data, new InflaterInputStream(decode(out)).readAllBytes());
+	}
+
+	@Test
+	public void testBelowMinimumSize() throws IOException {
+		var compressor = new ResponseCompressor(Deflater.DEFAULT_COMPRESSION, 1024);
+		var data = data(1023);
+		var out = new ByteArrayOutputStream();
+		var stream = compressor.compress(ResponseCompressor.Encoding.GZIP, out);
+		stream.write(data);
+		stream.close();
+		assertFalse(stream.isCompressed());
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	private InputStream decode(ByteArrayOutputStream out) {
+		return new ByteArrayInputStream(Base64.getDecoder().decode(out.toByteArray()));
+	}
+
+	private byte[] data(int size) {
+		var random = new Random(size);
+		var data = new byte[size];
+		for(int i = 0; i < size; i++) {
+			data[i] = (byte) ('a' + random.nextInt(6));
+		}
+		return data;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.fleetpin.graphql.aws.lambda;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.fleetpin.graphql.aws.lambda.exceptions.AccessDeniedError;
+
+public class ValidationCacheTest {
+
+	private static final Instant NOW = Instant.ofEpochSecond(1_600_000_000);
+
+	@Test
+	public void testCollapsesConcurrentMisses() throws Exception {
+		var cache = new ValidationCache<String>(10, Duration.ofMinutes(5), Clock.fixed(NOW, ZoneOffset.UTC));
+		var calls = new AtomicInteger();
+		var pending = new CompletableFuture<String>();
+
+		var first = cache.get("token", t -> {
+			calls.incrementAndGet();
+			return pending;
+		});
+		var second = cache.get("token", t -> {
+			calls.incrementAndGet();
+			return CompletableFuture.completedFuture("other");
+		});
+		pending.complete("user");
+
+		assertEquals(1, calls.get());
+		assertEquals("user", first.get());
+		assertSame(first, second);
+	}
+
+	@Test
+	public void testDoesNotCacheFailures() throws Exception {
+		var cache = new ValidationCache<String>(10, Duration.ofMinutes(5), Clock.fixed(NOW, ZoneOffset.UTC));
+
+		var failed = cache.get("token", t -> CompletableFuture.failedFuture(new AccessDeniedError()));
+		var error = assertThrows(ExecutionException.class, failed::get);
+		assertEquals(AccessDeniedError.class, error.getCause().getClass());
+
+		assertEquals("user", cache.get("token", t -> CompletableFuture.completedFuture("user")).get());
+	}
+
+	@Test
+	public void testHonoursTokenExpiry() throws Exception {
+		var clock = new MutableClock();
+		var cache = new ValidationCache<String>(10, Duration.ofMinutes(5), clock);
+		var token = JWT.create().withExpiresAt(Date.from(NOW.plusSeconds(60))).sign(Algorithm.HMAC256("secret"));
+		var calls = new AtomicInteger();
+
+		cache.get(token, t -> CompletableFuture.completedFuture("user" + calls.incrementAndGet()));
+		clock.now = NOW.plusSeconds(59);
+		assertEquals("user1", cache.get(token, t -> CompletableFuture.completedFuture("user" + calls.incrementAndGet())).get());
+		clock.now = NOW.plusSeconds(61);
+		assertEquals("user2", cache.get(token, t -> CompletableFuture.completedFuture("user" + calls.incrementAndGet())).get());
+	}
+
+	@Test
+	public void testBounded() throws Exception {
+		var cache = new ValidationCache<String>(2, Duration.ofMinutes(5), Clock.fixed(NOW, ZoneOffset.UTC));
+		for(int i = 0; i < 5; i++) {
+			cache.get("token" + i, CompletableFuture::completedFuture);
+		}
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testDropsLeastRecentlyUsed() throws Exception {
+		var cache = new ValidationCache<String>(2, Duration.ofMinutes(5), Clock.fixed(NOW, ZoneOffset.UTC));
+		var calls = new AtomicInteger();
+		Function<String, CompletableFuture<String>> validator = t -> {
+			calls.incrementAndGet();
+			return CompletableFuture.completedFuture(t);
+		};
+
+		cache.get("token0", validator);
+		cache.get("token1", validator);
+		cache.get("token0", validator);
+		cache.get("token2", validator);
+		assertEquals(3, calls.get());
+
+		// token0 was read more recently than token1 so it is kept
+		cache.get("token0", validator);
+		assertEquals(3, calls.get());
+		cache.get("token1", validator);
+		assertEquals(4, calls.get());
+	}
+
+	private static class MutableClock extends Clock {
+		private Instant now = NOW;
+
+		@Override
+		public ZoneOffset getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(java.time.ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -1,8 +1,15 @@
 package com.fleetpin.graphql.aws.lambda.model;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
 import org.reactivestreams.Publisher;
 
+import com.fleetpin.graphql.aws.lambda.ContextGraphQL;
 import com.fleetpin.graphql.builder.annotations.Entity;
+import com.fleetpin.graphql.builder.annotations.Query;
 import com.fleetpin.graphql.builder.annotations.Subscription;
 
 @Entity
@@ -14,6 +21,33 @@ public class Example {
 		return name;
 	}
 	
+	public CompletableFuture<String> getLoaded(ContextGraphQL context) {
+		return context.getDataLoaderRegistry().<String, String>getDataLoader("loaded").load(name);
+	}
+	
+	@Query
+	public static Example example() {
+		var example = new Example();
+		example.name = "example";
+		return example;
+	}
+	
+	@Query
+	public static List<Example> examples() {
+		var examples = new ArrayList<Example>();
+		for(var name : List.of("a", "b", "c")) {
+			var example = new Example();
+			example.name = name;
+			examples.add(example);
+		}
+		return examples;
+	}
+	
+	@Query
+	public static CompletableFuture<Optional<Example>> slowExample() {
+		return new CompletableFuture<>();
+	}
+	
 	@Subscription
 	public static Publisher<Example> allExamples() {
 		return null;